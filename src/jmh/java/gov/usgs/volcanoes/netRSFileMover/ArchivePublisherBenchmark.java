@@ -0,0 +1,88 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of moving a completed download from the temp directory into the
+ * archive, with and without gzip. Set java.io.tmpdir to measure a particular
+ * filesystem. Files are random with four bits of entropy a byte, so gzip
+ * roughly halves them, much as it does receiver data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ArchivePublisherBenchmark {
+
+	@Param({ "65536", "1048576", "16777216" })
+	public int fileSize;
+
+	@Param({ "false", "true" })
+	public boolean fsync;
+
+	/** gzip level, or 0 to publish uncompressed */
+	@Param({ "0", "1", "6" })
+	public int compressionLevel;
+
+	private File root;
+	private File tmpFile;
+	private File archiveFile;
+	private byte[] contents;
+	private ArchivePublisher publisher;
+
+	@Setup
+	public void setup() throws IOException {
+		root = Files.createTempDirectory("publish").toFile();
+		tmpFile = new File(new File(root, "tmp"), "BENCH201701010000a.T00");
+		tmpFile.getParentFile().mkdirs();
+		publisher = new ArchivePublisher(fsync, compressionLevel > 0, compressionLevel);
+		archiveFile = new File(new File(root, "BENCH/201701"), publisher.getArchiveName(tmpFile.getName()));
+
+		contents = new byte[fileSize];
+		Random random = new Random(fileSize);
+		for (int i = 0; i < contents.length; i++)
+			contents[i] = (byte) random.nextInt(16);
+	}
+
+	@Setup(Level.Invocation)
+	public void writeTmpFile() throws IOException {
+		OutputStream out = new FileOutputStream(tmpFile);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		Benchmarks.delete(root);
+	}
+
+	@Benchmark
+	public void publish() throws IOException {
+		publisher.publish(tmpFile, archiveFile);
+	}
+}
@@ -0,0 +1,94 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+public final class Benchmarks {
+
+	private Benchmarks() {
+	}
+
+	/**
+	 * Delete a file or directory and everything in it.
+	 *
+	 * @param file
+	 */
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+
+		file.delete();
+	}
+
+	/**
+	 * Write a file of repeatable pseudo-random bytes, standing in for a
+	 * receiver's data file. Random bytes neither compress nor repeat, much
+	 * like real observation files.
+	 *
+	 * @param file
+	 * @param size
+	 *            length in bytes
+	 * @param seed
+	 * @throws IOException
+	 */
+	public static void writeSyntheticFile(File file, int size, long seed) throws IOException {
+		file.getParentFile().mkdirs();
+
+		byte[] contents = new byte[size];
+		new Random(seed).nextBytes(contents);
+
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write a config file.
+	 *
+	 * @param file
+	 * @param settings
+	 *            key value pairs
+	 * @throws IOException
+	 */
+	public static void writeConfigFile(File file, Map<String, String> settings) throws IOException {
+		writeConfigFile(file, settings, Collections.<String> emptyList());
+	}
+
+	/**
+	 * Write a config file with receiver directives.
+	 *
+	 * @param file
+	 * @param settings
+	 *            key value pairs
+	 * @param receivers
+	 *            receiver names
+	 * @throws IOException
+	 */
+	public static void writeConfigFile(File file, Map<String, String> settings, List<String> receivers)
+			throws IOException {
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		try {
+			for (Map.Entry<String, String> setting : settings.entrySet())
+				out.println(setting.getKey() + "=" + setting.getValue());
+			for (String receiver : receivers)
+				out.println("receiver=" + receiver);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.ftpserver.ConnectionConfigFactory;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.command.Command;
+import org.apache.ftpserver.command.CommandFactoryFactory;
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.Ftplet;
+import org.apache.ftpserver.ftplet.FtpletResult;
+import org.apache.ftpserver.ftplet.UserManager;
+import org.apache.ftpserver.impl.FtpIoSession;
+import org.apache.ftpserver.impl.FtpServerContext;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.usermanager.PropertiesUserManagerFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+
+/**
+ * A local FTP server standing in for one or more receivers. Each user sees
+ * their own directory as the root of a receiver's filesystem, reached over
+ * their own emulated link. Like some receivers, I answer XCRC for whole files
+ * and ranges.
+ */
+public class EmbeddedFtpServer implements EmulatedLinkFileSystem.LinkLookup {
+
+	/** most sessions open at once, across all users */
+	public static final int MAX_LOGINS = 4096;
+
+	/** FEAT reply, with each feature indented as RFC 2389 asks */
+	private static final String[] FEATURES = { "Extensions supported", " SIZE", " MDTM", " MLST type*;size*;modify*;",
+			" REST STREAM", " XCRC", "End" };
+
+	private final FtpServer server;
+	private final int port;
+	private final File usersFile;
+	private final UserManager userManager;
+	private final Map<String, LinkProfile> links;
+	private final Map<String, TokenBucket> bandwidth;
+
+	/**
+	 * Constructor for a server with no users yet.
+	 *
+	 * @throws IOException
+	 */
+	public EmbeddedFtpServer() throws IOException {
+		port = freePort();
+		links = new ConcurrentHashMap<String, LinkProfile>();
+		bandwidth = new ConcurrentHashMap<String, TokenBucket>();
+
+		FtpServerFactory serverFactory = new FtpServerFactory();
+		ListenerFactory listenerFactory = new ListenerFactory();
+		listenerFactory.setServerAddress("127.0.0.1");
+		listenerFactory.setPort(port);
+		serverFactory.addListener("default", listenerFactory.createListener());
+
+		ConnectionConfigFactory connectionConfig = new ConnectionConfigFactory();
+		connectionConfig.setMaxLogins(MAX_LOGINS);
+		connectionConfig.setMaxThreads(MAX_LOGINS);
+		serverFactory.setConnectionConfig(connectionConfig.createConnectionConfig());
+
+		usersFile = File.createTempFile("ftpusers", ".properties");
+		PropertiesUserManagerFactory userManagerFactory = new PropertiesUserManagerFactory();
+		userManagerFactory.setFile(usersFile);
+		userManager = userManagerFactory.createUserManager();
+		serverFactory.setUserManager(userManager);
+
+		serverFactory.setFileSystem(new EmulatedLinkFileSystem(this));
+		Map<String, Ftplet> ftplets = new HashMap<String, Ftplet>();
+		ftplets.put("receiver", new ReceiverFtplet());
+		serverFactory.setFtplets(ftplets);
+
+		CommandFactoryFactory commandFactory = new CommandFactoryFactory();
+		// the server looks up X commands without their X, as it does XMKD
+		commandFactory.addCommand("CRC", new XcrcCommand());
+		serverFactory.setCommandFactory(commandFactory.createCommandFactory());
+
+		server = serverFactory.createServer();
+	}
+
+	/**
+	 * Constructor for a server with a single user on a perfect link.
+	 *
+	 * @param root
+	 *            directory to serve
+	 * @param userName
+	 * @param password
+	 * @throws IOException
+	 * @throws FtpException
+	 */
+	public EmbeddedFtpServer(File root, String userName, String password) throws IOException, FtpException {
+		this();
+		addUser(userName, password, root, LinkProfile.LOOPBACK);
+	}
+
+	/**
+	 * Add a user.
+	 *
+	 * @param userName
+	 * @param password
+	 * @param home
+	 *            directory the user sees as root
+	 * @param link
+	 *            link between the user and me
+	 * @throws FtpException
+	 */
+	public void addUser(String userName, String password, File home, LinkProfile link) throws FtpException {
+		BaseUser user = new BaseUser();
+		user.setName(userName);
+		user.setPassword(password);
+		user.setHomeDirectory(home.getAbsolutePath());
+		userManager.save(user);
+
+		links.put(userName, link);
+		if (link.bytesPerSecond > 0)
+			bandwidth.put(userName, new TokenBucket(link.bytesPerSecond));
+	}
+
+	public LinkProfile getLink(String userName) {
+		LinkProfile link = userName == null ? null : links.get(userName);
+		return link == null ? LinkProfile.LOOPBACK : link;
+	}
+
+	public TokenBucket getBandwidth(String userName) {
+		return userName == null ? null : bandwidth.get(userName);
+	}
+
+	/**
+	 * Start serving.
+	 *
+	 * @throws FtpException
+	 */
+	public void start() throws FtpException {
+		server.start();
+	}
+
+	/**
+	 * Stop serving.
+	 */
+	public void stop() {
+		server.stop();
+		usersFile.delete();
+	}
+
+	/**
+	 * @return port I listen on
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Delay every command by its user's latency, as though each were a round
+	 * trip over their link, and list the features a receiver would.
+	 */
+	private class ReceiverFtplet extends DefaultFtplet {
+		public FtpletResult beforeCommand(FtpSession session, FtpRequest request) throws FtpException,
+				IOException {
+			String userName = session.getUser() != null ? session.getUser().getName() : null;
+			if (userName == null && "USER".equals(request.getCommand()))
+				userName = request.getArgument();
+
+			int latency = getLink(userName).latency;
+			if (latency > 0)
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+			if ("FEAT".equals(request.getCommand())) {
+				session.write(new DefaultFtpReply(211, FEATURES));
+				return FtpletResult.SKIP;
+			}
+
+			return super.beforeCommand(session, request);
+		}
+	}
+
+	/**
+	 * Answer XCRC, which the server doesn't know.
+	 */
+	private static class XcrcCommand implements Command {
+		public void execute(FtpIoSession session, FtpServerContext context, FtpRequest request) {
+			session.resetState();
+			if (!session.isLoggedIn())
+				session.write(new DefaultFtpReply(530, "Please log in."));
+			else
+				session.write(checksum(new File(session.getUser().getHomeDirectory()), request.getArgument()));
+		}
+	}
+
+	/**
+	 * Answer XCRC path [start end].
+	 */
+	private static FtpReply checksum(File home, String argument) {
+		if (argument == null)
+			return new DefaultFtpReply(501, "Syntax error in parameters or arguments.");
+
+		String[] args = argument.trim().split("\\s+");
+		File file = new File(home, args[0].replaceFirst("^/+", ""));
+		if (!file.isFile())
+			return new DefaultFtpReply(550, args[0] + ": No such file.");
+
+		long start = 0;
+		long end = file.length();
+		if (args.length == 3) {
+			try {
+				start = Long.parseLong(args[1]);
+				end = Math.min(end, Long.parseLong(args[2]));
+			} catch (NumberFormatException e) {
+				return new DefaultFtpReply(501, "Syntax error in parameters or arguments.");
+			}
+		}
+
+		CRC32 crc = new CRC32();
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(file, "r");
+			in.seek(start);
+			byte[] buffer = new byte[8192];
+			long remaining = end - start;
+			while (remaining > 0) {
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (n < 0)
+					break;
+				crc.update(buffer, 0, n);
+				remaining -= n;
+			}
+		} catch (IOException e) {
+			return new DefaultFtpReply(451, e.getMessage());
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+		}
+
+		return new DefaultFtpReply(250, String.format("%08X", crc.getValue()));
+	}
+}
@@ -0,0 +1,264 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.ftpserver.filesystem.nativefs.NativeFileSystemFactory;
+import org.apache.ftpserver.ftplet.FileSystemFactory;
+import org.apache.ftpserver.ftplet.FileSystemView;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.apache.ftpserver.ftplet.User;
+
+/**
+ * Serve each user's home directory as though over a slow, lossy link. Files
+ * are read at the user's bandwidth, after a delay, and may be cut off part
+ * way through. Everything else is left to the native filesystem.
+ */
+public class EmulatedLinkFileSystem implements FileSystemFactory {
+
+	/**
+	 * Where to find each user's link.
+	 */
+	public interface LinkLookup {
+		/**
+		 * @param userName
+		 * @return the user's link
+		 */
+		LinkProfile getLink(String userName);
+
+		/**
+		 * @param userName
+		 * @return rate limit shared by all of the user's transfers, or null
+		 */
+		TokenBucket getBandwidth(String userName);
+	}
+
+	private final NativeFileSystemFactory nativeFileSystem;
+	private final LinkLookup links;
+	private final Random random;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param links
+	 *            where to find each user's link
+	 */
+	public EmulatedLinkFileSystem(LinkLookup links) {
+		this.links = links;
+		nativeFileSystem = new NativeFileSystemFactory();
+		random = new Random();
+	}
+
+	public FileSystemView createFileSystemView(User user) throws FtpException {
+		return new View(nativeFileSystem.createFileSystemView(user), user.getName());
+	}
+
+	private synchronized double nextRandom() {
+		return random.nextDouble();
+	}
+
+	/**
+	 * A user's view of the filesystem.
+	 */
+	private class View implements FileSystemView {
+		private final FileSystemView view;
+		private final String userName;
+
+		private View(FileSystemView view, String userName) {
+			this.view = view;
+			this.userName = userName;
+		}
+
+		public FtpFile getHomeDirectory() throws FtpException {
+			return wrap(view.getHomeDirectory());
+		}
+
+		public FtpFile getWorkingDirectory() throws FtpException {
+			return wrap(view.getWorkingDirectory());
+		}
+
+		public boolean changeWorkingDirectory(String dir) throws FtpException {
+			return view.changeWorkingDirectory(dir);
+		}
+
+		public FtpFile getFile(String file) throws FtpException {
+			return wrap(view.getFile(file));
+		}
+
+		public boolean isRandomAccessible() throws FtpException {
+			return view.isRandomAccessible();
+		}
+
+		public void dispose() {
+			view.dispose();
+		}
+
+		private FtpFile wrap(FtpFile file) {
+			return file == null ? null : new LinkFile(file, userName);
+		}
+	}
+
+	/**
+	 * A file read over the user's link.
+	 */
+	private class LinkFile implements FtpFile {
+		private final FtpFile file;
+		private final String userName;
+
+		private LinkFile(FtpFile file, String userName) {
+			this.file = file;
+			this.userName = userName;
+		}
+
+		public InputStream createInputStream(long offset) throws IOException {
+			LinkProfile link = links.getLink(userName);
+			long cutoff = Long.MAX_VALUE;
+			if (link.dropProbability > 0 && nextRandom() < link.dropProbability)
+				cutoff = (long) (nextRandom() * Math.max(0, file.getSize() - offset));
+
+			return new LinkInputStream(file.createInputStream(offset), link, links.getBandwidth(userName), cutoff);
+		}
+
+		public String getAbsolutePath() {
+			return file.getAbsolutePath();
+		}
+
+		public String getName() {
+			return file.getName();
+		}
+
+		public boolean isHidden() {
+			return file.isHidden();
+		}
+
+		public boolean isDirectory() {
+			return file.isDirectory();
+		}
+
+		public boolean isFile() {
+			return file.isFile();
+		}
+
+		public boolean doesExist() {
+			return file.doesExist();
+		}
+
+		public boolean isReadable() {
+			return file.isReadable();
+		}
+
+		public boolean isWritable() {
+			return file.isWritable();
+		}
+
+		public boolean isRemovable() {
+			return file.isRemovable();
+		}
+
+		public String getOwnerName() {
+			return file.getOwnerName();
+		}
+
+		public String getGroupName() {
+			return file.getGroupName();
+		}
+
+		public int getLinkCount() {
+			return file.getLinkCount();
+		}
+
+		public long getLastModified() {
+			return file.getLastModified();
+		}
+
+		public boolean setLastModified(long time) {
+			return file.setLastModified(time);
+		}
+
+		public long getSize() {
+			return file.getSize();
+		}
+
+		public boolean mkdir() {
+			return file.mkdir();
+		}
+
+		public boolean delete() {
+			return file.delete();
+		}
+
+		public boolean move(FtpFile destination) {
+			return file.move(destination instanceof LinkFile ? ((LinkFile) destination).file : destination);
+		}
+
+		public List<FtpFile> listFiles() {
+			List<FtpFile> files = file.listFiles();
+			if (files == null)
+				return null;
+
+			List<FtpFile> wrapped = new ArrayList<FtpFile>(files.size());
+			for (FtpFile child : files)
+				wrapped.add(new LinkFile(child, userName));
+			return wrapped;
+		}
+
+		public OutputStream createOutputStream(long offset) throws IOException {
+			return file.createOutputStream(offset);
+		}
+	}
+
+	/**
+	 * A stream delayed, throttled and possibly cut off.
+	 */
+	private static class LinkInputStream extends FilterInputStream {
+		private final LinkProfile link;
+		private final TokenBucket bandwidth;
+		private final long cutoff;
+		private long position;
+
+		private LinkInputStream(InputStream in, LinkProfile link, TokenBucket bandwidth, long cutoff) {
+			super(in);
+			this.link = link;
+			this.bandwidth = bandwidth;
+			this.cutoff = cutoff;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n < 0 ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			try {
+				if (position == 0 && link.latency > 0)
+					Thread.sleep(link.latency);
+
+				if (position >= cutoff)
+					throw new IOException("Simulated link dropped after " + position + " bytes");
+
+				len = (int) Math.min(len, cutoff - position);
+				if (bandwidth != null)
+					len = Math.min(len, Math.max(1, bandwidth.getCapacity()));
+
+				int n = in.read(b, off, len);
+				if (n > 0) {
+					if (bandwidth != null)
+						bandwidth.acquire(n);
+					position += n;
+				}
+				return n;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted on simulated link");
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of naming an interval's file, compared with SimpleDateFormat.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FileNameFormatBenchmark {
+
+	private static final String PATTERN = "yyyyMM/dd/'a'/'AKAA'yyyyMMddHHmm'a.T00'";
+
+	private FileNameFormat fileNameFormat;
+	private SimpleDateFormat simpleDateFormat;
+	private char[] buffer;
+	private String name;
+	private long interval;
+
+	@Setup
+	public void setup() {
+		fileNameFormat = new FileNameFormat(PATTERN);
+		simpleDateFormat = new SimpleDateFormat(PATTERN);
+		simpleDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		buffer = new char[fileNameFormat.length()];
+		interval = 1483228800000L;
+		name = fileNameFormat.format(interval);
+	}
+
+	@Benchmark
+	public String simpleDateFormat() {
+		interval += 60000;
+		return simpleDateFormat.format(new Date(interval));
+	}
+
+	@Benchmark
+	public String format() {
+		interval += 60000;
+		return fileNameFormat.format(interval);
+	}
+
+	@Benchmark
+	public char[] formatIntoBuffer() {
+		interval += 60000;
+		fileNameFormat.format(interval, buffer, 0);
+		return buffer;
+	}
+
+	@Benchmark
+	public long parse() {
+		return fileNameFormat.parse(name);
+	}
+}
@@ -0,0 +1,40 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+/**
+ * How a simulated receiver's link behaves.
+ */
+public class LinkProfile {
+
+	/** a link with no delay, limit or loss */
+	public static final LinkProfile LOOPBACK = new LinkProfile(0, 0, 0);
+
+	/** delay added to every command and to the first byte of every transfer, in ms */
+	public final int latency;
+
+	/** bandwidth of the link, or a value less than one for no limit */
+	public final int bytesPerSecond;
+
+	/** chance each transfer is cut off part way through, from 0 to 1 */
+	public final double dropProbability;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param latency
+	 *            delay added to every command and first byte, in ms
+	 * @param bytesPerSecond
+	 *            bandwidth, or a value less than one for no limit
+	 * @param dropProbability
+	 *            chance each transfer is cut off part way through
+	 */
+	public LinkProfile(int latency, int bytesPerSecond, double dropProbability) {
+		this.latency = latency;
+		this.bytesPerSecond = bytesPerSecond;
+		this.dropProbability = dropProbability;
+	}
+
+	public String toString() {
+		return latency + " ms latency, " + (bytesPerSecond > 0 ? bytesPerSecond + " B/s" : "unlimited") + ", "
+				+ dropProbability + " drop probability";
+	}
+}
@@ -0,0 +1,91 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.ftpserver.ftplet.FtpException;
+
+/**
+ * Simulate many receivers on one box. Each receiver is a user of a single
+ * local FTP server, with a directory laid out as the real receiver would lay
+ * it out and a link of its own.
+ */
+public class ReceiverSimulator {
+
+	private final File root;
+	private final EmbeddedFtpServer server;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param root
+	 *            directory to hold the receivers' files
+	 * @throws IOException
+	 */
+	public ReceiverSimulator(File root) throws IOException {
+		this.root = root;
+		server = new EmbeddedFtpServer();
+	}
+
+	/**
+	 * Add a receiver, writing a file for each interval in its time span. The
+	 * receiver is reached with the user name and password in its settings.
+	 *
+	 * @param settings
+	 *            the receiver's settings, as NetRSFileMover will see them
+	 * @param link
+	 *            link to the receiver
+	 * @param fileSize
+	 *            size of each file in bytes
+	 * @param missingFraction
+	 *            fraction of files the receiver doesn't have, from 0 to 1
+	 * @return number of files written
+	 * @throws IOException
+	 * @throws FtpException
+	 */
+	public int addReceiver(NetRSSettings settings, LinkProfile link, int fileSize, double missingFraction)
+			throws IOException, FtpException {
+		File home = new File(root, settings.systemName);
+
+		FileNameFormat fileNameFormat = new FileNameFormat(settings.fileNameFormat);
+
+		Random random = new Random(settings.systemName.hashCode());
+		int files = 0;
+		for (long interval : new NetRSConnection(settings).getIntervals()) {
+			if (random.nextDouble() < missingFraction)
+				continue;
+
+			File file = new File(home, fileNameFormat.format(interval));
+			Benchmarks.writeSyntheticFile(file, fileSize, interval ^ settings.systemName.hashCode());
+			files++;
+		}
+
+		home.mkdirs();
+		server.addUser(settings.userName, settings.password, home, link);
+		return files;
+	}
+
+	/**
+	 * Start serving.
+	 *
+	 * @throws FtpException
+	 */
+	public void start() throws FtpException {
+		server.start();
+	}
+
+	/**
+	 * Stop serving.
+	 */
+	public void stop() {
+		server.stop();
+	}
+
+	/**
+	 * @return port the receivers listen on
+	 */
+	public int getPort() {
+		return server.getPort();
+	}
+}
@@ -0,0 +1,165 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.util.StringUtils;
+
+/**
+ * Sweep hundreds of simulated receivers and report how long it took and what
+ * it cost. Configured with system properties:
+ *
+ * <pre>
+ * receivers        number of receivers (100)
+ * days             time span to sweep (1)
+ * duration         minutes covered by each file (60)
+ * fileSize         bytes in each file (65536)
+ * latency          link latency in ms (200)
+ * bytesPerSecond   link bandwidth, 0 for unlimited (0)
+ * dropProbability  chance a transfer is cut off (0.01)
+ * missingFraction  fraction of files receivers don't have (0.05)
+ * netrs.*          any NetRSFileMover setting, e.g. -Dnetrs.maxConcurrentPolls=32
+ * </pre>
+ *
+ * Every other receiver is a NetR9. The simulator runs in the same JVM, so
+ * threads and memory it uses are reported separately where they can be.
+ */
+public final class ScalingHarness {
+
+	private static final String PASSWORD = "simulated";
+	private static final String SETTING_PREFIX = "netrs.";
+
+	private ScalingHarness() {
+	}
+
+	/**
+	 * Main method.
+	 *
+	 * @param args
+	 *            ignored
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int receivers = Integer.getInteger("receivers", 100);
+		int days = Integer.getInteger("days", 1);
+		int duration = Integer.getInteger("duration", 60);
+		int fileSize = Integer.getInteger("fileSize", 65536);
+		LinkProfile link = new LinkProfile(Integer.getInteger("latency", 200), Integer.getInteger("bytesPerSecond",
+				0), StringUtils.stringToDouble(System.getProperty("dropProbability"), 0.01));
+		double missingFraction = StringUtils.stringToDouble(System.getProperty("missingFraction"), 0.05);
+
+		File root = Files.createTempDirectory("scaling").toFile();
+		File outputDir = new File(root, "out");
+		ReceiverSimulator simulator = new ReceiverSimulator(new File(root, "receivers"));
+
+		try {
+			Map<String, String> config = new LinkedHashMap<String, String>();
+			config.put("address", "127.0.0.1");
+			config.put("port", "" + simulator.getPort());
+			config.put("password", PASSWORD);
+			config.put("outputDir", outputDir.getPath());
+			config.put("printHash", "false");
+			config.put("duration", "" + duration);
+			config.put("timeSpan", "-" + days + "d");
+			config.put("perDaySubdirectories", "true");
+			config.put("retryInterval", "5");
+			config.put("maxRetryInterval", "30");
+			for (String key : System.getProperties().stringPropertyNames())
+				if (key.startsWith(SETTING_PREFIX))
+					config.put(key.substring(SETTING_PREFIX.length()), System.getProperty(key));
+
+			List<String> names = new ArrayList<String>();
+			for (int i = 0; i < receivers; i++) {
+				String name = String.format("S%03d", i);
+				names.add(name);
+				config.put(name + ".userName", name);
+				if (i % 2 == 1)
+					config.put(name + ".receiverType", ReceiverType.NETR9.getTypeString());
+			}
+
+			File configFile = new File(root, "scaling.config");
+			Benchmarks.writeConfigFile(configFile, config, names);
+			ConfigFile cf = new ConfigFile(configFile.getPath());
+
+			System.out.println("Simulating " + receivers + " receivers over " + link + " in " + root);
+			int files = 0;
+			for (String name : names)
+				files += simulator.addReceiver(new NetRSSettings(name, cf.getSubConfig(name, true)), link, fileSize,
+						missingFraction);
+			simulator.start();
+
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			int baseThreads = threads.getThreadCount();
+			long baseHeap = resetHeapPeak();
+			threads.resetPeakThreadCount();
+
+			NetRSFileMover fileMover = new NetRSFileMover(cf, null);
+			long start = System.currentTimeMillis();
+			fileMover.go();
+			long elapsed = System.currentTimeMillis() - start;
+
+			int archived = 0;
+			for (String name : names)
+				archived += count(new File(outputDir, name));
+			System.out.println("Sweep time:      " + elapsed + " ms");
+			System.out.println("Files archived:  " + archived + " of " + files + " served");
+			System.out.println("Throughput:      " + (archived * (long) fileSize * 1000 / Math.max(1, elapsed))
+					+ " B/s");
+			System.out.println("Peak threads:    " + threads.getPeakThreadCount() + " (" + baseThreads
+					+ " before the sweep)");
+			System.out.println("Peak heap:       " + heapPeak() / 1024 + " kB (" + baseHeap / 1024
+					+ " kB before the sweep)");
+		} finally {
+			simulator.stop();
+			Benchmarks.delete(root);
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Count files in a receiver's archive, ignoring partial copies.
+	 */
+	private static int count(File dir) {
+		int files = 0;
+		File[] children = dir.listFiles();
+		if (children == null)
+			return 0;
+
+		for (File child : children) {
+			if (child.isDirectory())
+				files += count(child);
+			else if (!child.getName().startsWith(ArchivePublisher.PARTIAL_PREFIX))
+				files++;
+		}
+		return files;
+	}
+
+	private static long resetHeapPeak() {
+		System.gc();
+		long used = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP) {
+				used += pool.getUsage().getUsed();
+				pool.resetPeakUsage();
+			}
+		return used;
+	}
+
+	private static long heapPeak() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+}
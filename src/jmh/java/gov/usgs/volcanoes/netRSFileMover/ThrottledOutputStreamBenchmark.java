@@ -0,0 +1,138 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost and accuracy of the streams every downloaded byte passes through.
+ *
+ * The overhead benchmarks write through a rate limit too high to ever sleep,
+ * so they measure bookkeeping alone. The accuracy benchmark writes one
+ * second's worth of bytes at a real rate through a drained bucket; a perfect
+ * throttle scores 1000 ms.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ThrottledOutputStreamBenchmark {
+
+	/** rate high enough that writes never wait */
+	private static final int UNLIMITED = Integer.MAX_VALUE;
+
+	/**
+	 * A sink which discards everything.
+	 */
+	private static class NullOutputStream extends OutputStream {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+
+	/**
+	 * Streams for the overhead benchmarks.
+	 */
+	@State(Scope.Thread)
+	public static class Overhead {
+		@Param({ "1", "512", "1460", "8192", "65536" })
+		public int writeSize;
+
+		byte[] buffer;
+		OutputStream buffered;
+		OutputStream throttled;
+		OutputStream hotPath;
+
+		@Setup
+		public void setup() {
+			buffer = new byte[writeSize];
+			Arrays.fill(buffer, (byte) 'x');
+
+			buffered = new BufferedOutputStream(new NullOutputStream(), NetRSSettings.DEFAULT_BUFFER_SIZE);
+			throttled = new ThrottledOutputStream(new NullOutputStream(), UNLIMITED);
+
+			// the stack NetRSConnection writes through
+			OutputStream out = new BufferedOutputStream(new NullOutputStream(), NetRSSettings.DEFAULT_BUFFER_SIZE);
+			out = new ThrottledOutputStream(out,
+					Arrays.asList(new TokenBucket(UNLIMITED), new TokenBucket(UNLIMITED)));
+			hotPath = new MeteredOutputStream(out);
+		}
+	}
+
+	/**
+	 * Streams for the accuracy benchmark, rebuilt for every write.
+	 */
+	@State(Scope.Thread)
+	public static class Accuracy {
+		@Param({ "614", "2048", "65536" })
+		public int bytesPerSecond;
+
+		@Param({ "1460", "65536" })
+		public int writeSize;
+
+		byte[] buffer;
+		OutputStream throttled;
+
+		@Setup(Level.Invocation)
+		public void setup() throws IOException {
+			buffer = new byte[writeSize];
+			TokenBucket bucket = new TokenBucket(bytesPerSecond);
+			throttled = new ThrottledOutputStream(new NullOutputStream(), Arrays.asList(bucket));
+
+			// spend the initial burst so the measured write waits for every
+			// byte
+			throttled.write(new byte[bucket.getCapacity()]);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void baseline(Overhead state) throws IOException {
+		state.buffered.write(state.buffer, 0, state.writeSize);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void throttled(Overhead state) throws IOException {
+		state.throttled.write(state.buffer, 0, state.writeSize);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void hotPath(Overhead state) throws IOException {
+		state.hotPath.write(state.buffer, 0, state.writeSize);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1, batchSize = 1)
+	@Measurement(iterations = 3, batchSize = 1)
+	public void accuracy(Accuracy state) throws IOException {
+		int remaining = state.bytesPerSecond;
+		while (remaining > 0) {
+			int n = Math.min(remaining, state.writeSize);
+			state.throttled.write(state.buffer, 0, n);
+			remaining -= n;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ftpserver.ftplet.FtpException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.martiansoftware.jsap.ParseException;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+
+/**
+ * End-to-end cost of polling a single file: connecting, logging in, listing,
+ * transferring and publishing, against a local FTP server serving a
+ * synthetic receiver. The loopback link is never the bottleneck, so this
+ * measures my own overhead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransferBenchmark {
+
+	private static final String RECEIVER = "BNCH";
+	private static final String USER = NetRSSettings.DEFAULT_USER;
+	private static final String PASSWORD = "benchmark";
+
+	/** 2017-01-01 00:00 UTC */
+	private static final long INTERVAL = 1483228800000L;
+
+	@Param({ "T00", "T02", "Binex" })
+	public String dataFormat;
+
+	@Param({ "65536", "1048576" })
+	public int fileSize;
+
+	@Param({ "1", "4" })
+	public int segments;
+
+	private File root;
+	private File outputDir;
+	private EmbeddedFtpServer server;
+	private NetRSSettings settings;
+	private NetRSConnection connection;
+
+	@Setup
+	public void setup() throws IOException, FtpException, ParseException {
+		root = Files.createTempDirectory("transfer").toFile();
+		File receiverDir = new File(root, "receiver");
+		outputDir = new File(root, "out");
+
+		server = new EmbeddedFtpServer(receiverDir, USER, PASSWORD);
+		server.start();
+
+		Map<String, String> config = new LinkedHashMap<String, String>();
+		config.put("address", "127.0.0.1");
+		config.put("port", "" + server.getPort());
+		config.put("userName", USER);
+		config.put("password", PASSWORD);
+		config.put("dataFormat", dataFormat);
+		config.put("outputDir", outputDir.getPath());
+		config.put("printHash", "false");
+		config.put("timeSpan", "-1d");
+		config.put("segments", "" + segments);
+		config.put("minSegmentSize", "65536");
+		File configFile = new File(root, "benchmark.config");
+		Benchmarks.writeConfigFile(configFile, config);
+		settings = new NetRSSettings(RECEIVER, new ConfigFile(configFile.getPath()));
+
+		FileNameFormat fileNameFormat = new FileNameFormat(settings.fileNameFormat);
+		Benchmarks.writeSyntheticFile(new File(receiverDir, fileNameFormat.format(INTERVAL)), fileSize, INTERVAL);
+	}
+
+	/**
+	 * Start each poll from an empty archive with a fresh connection.
+	 */
+	@Setup(Level.Invocation)
+	public void emptyArchive() {
+		File[] files = outputDir.listFiles();
+		if (files != null)
+			for (File file : files)
+				Benchmarks.delete(file);
+
+		connection = new NetRSConnection(settings);
+	}
+
+	@TearDown(Level.Invocation)
+	public void disconnect() {
+		connection.disconnect();
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.stop();
+		Benchmarks.delete(root);
+	}
+
+	@Benchmark
+	public PollResult poll() {
+		PollResult result = connection.poll(INTERVAL);
+		if (result != PollResult.ARCHIVED)
+			throw new IllegalStateException("Poll didn't archive the file: " + result);
+
+		return result;
+	}
+}
@@ -0,0 +1,42 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.File;
+import java.io.IOException;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+
+/**
+ * Something to do with each file once it's in the archive, such as converting
+ * it to RINEX, checking its quality or forwarding it. Handlers are run by an
+ * ArchivePipeline, away from the polling threads.
+ *
+ * Besides a CommandHandler for each postArchiveCommand, handlers are found
+ * with ServiceLoader: a jar on the class path naming an implementation in
+ * META-INF/services/gov.usgs.volcanoes.netRSFileMover.ArchiveHandler is picked
+ * up. An implementation needs a public no-argument constructor.
+ *
+ * A file may be handed over more than once, if I'm stopped part way through or
+ * another handler fails, so handlers shouldn't mind seeing a file again.
+ */
+public interface ArchiveHandler {
+
+	/**
+	 * Read my settings. Called once, before any files are handed over.
+	 *
+	 * @param config
+	 *            top-level configuration
+	 */
+	void configure(ConfigFile config);
+
+	/**
+	 * Process a newly archived file.
+	 *
+	 * @param systemName
+	 *            receiver the file came from
+	 * @param file
+	 *            the file in the archive
+	 * @throws IOException
+	 *             if the file should be handed over again later
+	 */
+	void handle(String systemName, File file) throws IOException;
+}
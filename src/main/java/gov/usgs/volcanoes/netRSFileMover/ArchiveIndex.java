@@ -0,0 +1,173 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory index of files already in a receiver's archive directory. The
+ * index is built with a single walk of the archive the first time it's
+ * consulted, so deciding whether to fetch a file doesn't cost a stat. A file
+ * archived with gzip counts as the file itself.
+ *
+ * If given an index file, the index is loaded from there instead of walking the
+ * archive and each new file is appended to it. Files removed from the archive
+ * by hand won't be noticed until the index file is deleted.
+ */
+public class ArchiveIndex {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ArchiveIndex.class);
+
+	private final File root;
+	private final File indexFile;
+
+	private Set<String> files;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param root
+	 *            archive directory
+	 * @param indexFile
+	 *            where to persist the index, or null to walk the archive each
+	 *            time I'm started
+	 */
+	public ArchiveIndex(File root, File indexFile) {
+		this.root = root;
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * Decide if a file has been archived.
+	 *
+	 * @param name
+	 *            path relative to the archive directory, separated with '/'
+	 * @return true if the file is in the archive
+	 */
+	public synchronized boolean contains(String name) {
+		return getFiles().contains(name) || files.contains(name + ArchivePublisher.GZIP_SUFFIX);
+	}
+
+	/**
+	 * Record a newly archived file.
+	 *
+	 * @param name
+	 *            path relative to the archive directory, separated with '/'
+	 */
+	public synchronized void add(String name) {
+		if (!getFiles().add(name) || indexFile == null)
+			return;
+
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new FileWriter(indexFile, true));
+			writer.write(name + "\n");
+		} catch (IOException e) {
+			LOGGER.error("Couldn't update archive index " + indexFile + ". " + e.getMessage());
+		} finally {
+			close(writer);
+		}
+	}
+
+	/**
+	 * Forget the index, so it's built again when next consulted. Another node
+	 * may have added to the archive.
+	 */
+	public synchronized void reload() {
+		files = null;
+	}
+
+	private Set<String> getFiles() {
+		if (files != null)
+			return files;
+
+		long start = System.currentTimeMillis();
+		files = new HashSet<String>();
+		if (indexFile != null && indexFile.exists()) {
+			read();
+		} else {
+			walk();
+			if (indexFile != null)
+				write();
+		}
+		LOGGER.info("Indexed " + files.size() + " files in " + root + " in " + (System.currentTimeMillis() - start)
+				+ " ms");
+
+		return files;
+	}
+
+	private void walk() {
+		if (!root.isDirectory())
+			return;
+
+		final Path rootPath = root.toPath();
+		try {
+			Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					// skip partially published files
+					if (attrs.isRegularFile() && !file.getFileName().toString().startsWith(ArchivePublisher.PARTIAL_PREFIX))
+						files.add(rootPath.relativize(file).toString().replace(File.separatorChar, '/'));
+
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					LOGGER.debug("Can't index " + file + ". " + e.getMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			LOGGER.error("Couldn't index " + root + ". " + e.getMessage());
+		}
+	}
+
+	private void read() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(indexFile));
+			String line;
+			while ((line = reader.readLine()) != null)
+				if (line.length() > 0)
+					files.add(line);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't read archive index " + indexFile + ". " + e.getMessage());
+		} finally {
+			close(reader);
+		}
+	}
+
+	private void write() {
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new FileWriter(indexFile));
+			for (String name : files)
+				writer.write(name + "\n");
+		} catch (IOException e) {
+			LOGGER.error("Couldn't write archive index " + indexFile + ". " + e.getMessage());
+		} finally {
+			close(writer);
+		}
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable != null)
+			try {
+				closeable.close();
+			} catch (IOException e) {
+			}
+	}
+}
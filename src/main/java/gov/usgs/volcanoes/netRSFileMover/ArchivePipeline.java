@@ -0,0 +1,248 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hand each newly archived file to a list of ArchiveHandlers on a pool of
+ * worker threads, so downstream processing starts as soon as a file lands
+ * rather than when the archive is next scanned.
+ *
+ * Each file is recorded in a spool directory before it's queued, and the
+ * record is removed once every handler has finished with it. Anything left in
+ * the spool when I start is queued again, so files survive a restart. The queue
+ * is bounded; if it fills, the thread archiving the file runs the handlers
+ * itself, slowing polling to match. A file whose handlers fail is tried again
+ * after retryInterval ms, up to maxRetries times, then left in the spool
+ * renamed to .failed.
+ */
+public class ArchivePipeline {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ArchivePipeline.class);
+
+	public static final String SPOOL_SUFFIX = ".event";
+	public static final String FAILED_SUFFIX = ".failed";
+
+	private final List<ArchiveHandler> handlers;
+	private final File spoolDir;
+	private final int maxRetries;
+	private final long retryInterval;
+	private final ThreadPoolExecutor workers;
+	private final ScheduledExecutorService timer;
+	private final AtomicLong sequence;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param handlers
+	 *            run in order on each file
+	 * @param spoolDir
+	 *            where to record files not yet handled
+	 * @param threads
+	 *            number of workers
+	 * @param queueSize
+	 *            files which may wait for a worker
+	 * @param maxRetries
+	 *            times to try a file again
+	 * @param retryInterval
+	 *            ms to wait before trying again
+	 */
+	public ArchivePipeline(List<ArchiveHandler> handlers, File spoolDir, int threads, int queueSize, int maxRetries,
+			long retryInterval) {
+		this.handlers = handlers;
+		this.spoolDir = spoolDir;
+		this.maxRetries = maxRetries;
+		this.retryInterval = retryInterval;
+		threads = Math.max(1, threads);
+		workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadPoolExecutor.CallerRunsPolicy());
+		timer = Executors.newSingleThreadScheduledExecutor();
+		sequence = new AtomicLong();
+	}
+
+	/**
+	 * Queue files left in the spool by an earlier run, oldest first.
+	 */
+	public void start() {
+		spoolDir.mkdirs();
+		File[] files = spoolDir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SPOOL_SUFFIX);
+			}
+		});
+		if (files == null || files.length == 0)
+			return;
+
+		Arrays.sort(files);
+		LOGGER.info("Picking up " + files.length + " archived files left in " + spoolDir);
+		for (File file : files) {
+			Event event = read(file);
+			if (event != null)
+				submit(event);
+		}
+	}
+
+	/**
+	 * Hand over a newly archived file.
+	 *
+	 * @param systemName
+	 *            receiver the file came from
+	 * @param file
+	 *            the file in the archive
+	 */
+	public void archived(String systemName, File file) {
+		String name = System.currentTimeMillis() + "-" + String.format("%08d", sequence.incrementAndGet())
+				+ SPOOL_SUFFIX;
+		Event event = new Event(new File(spoolDir, name), systemName, file.getAbsoluteFile());
+		try {
+			write(event);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't spool " + file + ". It won't survive a restart. " + e.getMessage());
+		}
+		submit(event);
+	}
+
+	/**
+	 * Stop taking files and wait for those queued to be handled. Files waiting
+	 * to be tried again are left in the spool for next time.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		timer.shutdownNow();
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	private void submit(final Event event) {
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					process(event);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOGGER.debug("Leaving " + event.file + " in the spool for next time.");
+		}
+	}
+
+	private void process(final Event event) {
+		try {
+			for (ArchiveHandler handler : handlers)
+				handler.handle(event.systemName, event.file);
+		} catch (IOException e) {
+			failed(event, e.getMessage());
+			return;
+		} catch (RuntimeException e) {
+			LOGGER.error("Unexpected error handling " + event.file, e);
+			failed(event, e.toString());
+			return;
+		}
+
+		if (!event.spoolFile.delete() && event.spoolFile.exists())
+			LOGGER.error("Couldn't remove " + event.spoolFile + ". " + event.file + " will be handled again.");
+	}
+
+	private void failed(final Event event, String reason) {
+		event.attempts++;
+		if (event.attempts > maxRetries) {
+			LOGGER.error("Giving up on " + event.file + ". " + reason);
+			File failed = new File(spoolDir, event.spoolFile.getName() + FAILED_SUFFIX);
+			if (!event.spoolFile.renameTo(failed))
+				LOGGER.error("Couldn't rename " + event.spoolFile + " to " + failed);
+			return;
+		}
+
+		LOGGER.warn("Couldn't handle " + event.file + ". Will try again in " + retryInterval / 1000 + " s. " + reason);
+		try {
+			write(event);
+		} catch (IOException e) {
+			LOGGER.debug("Couldn't record attempt on " + event.spoolFile + ". " + e.getMessage());
+		}
+
+		try {
+			timer.schedule(new Runnable() {
+				public void run() {
+					submit(event);
+				}
+			}, retryInterval, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			LOGGER.debug("Leaving " + event.file + " in the spool for next time.");
+		}
+	}
+
+	/**
+	 * Write a spool record: receiver, file and attempts so far, tab separated.
+	 */
+	private void write(Event event) throws IOException {
+		spoolDir.mkdirs();
+		File tmp = new File(spoolDir, event.spoolFile.getName() + ".tmp");
+		Writer writer = new FileWriter(tmp);
+		try {
+			writer.write(event.systemName + "\t" + event.file.getPath() + "\t" + event.attempts + "\n");
+		} finally {
+			writer.close();
+		}
+		Files.move(tmp.toPath(), event.spoolFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Event read(File spoolFile) {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(spoolFile));
+			try {
+				String line = reader.readLine();
+				String[] fields = line == null ? new String[0] : line.split("\t");
+				if (fields.length != 3) {
+					LOGGER.error("Ignoring corrupt spool file " + spoolFile);
+					return null;
+				}
+
+				Event event = new Event(spoolFile, fields[0], new File(fields[1]));
+				event.attempts = Integer.parseInt(fields[2]);
+				return event;
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			LOGGER.error("Couldn't read spool file " + spoolFile + ". " + e.getMessage());
+		} catch (NumberFormatException e) {
+			LOGGER.error("Ignoring corrupt spool file " + spoolFile);
+		}
+		return null;
+	}
+
+	/**
+	 * A file waiting to be handled.
+	 */
+	private static class Event {
+		private final File spoolFile;
+		private final String systemName;
+		private final File file;
+		private int attempts;
+
+		private Event(File spoolFile, String systemName, File file) {
+			this.spoolFile = spoolFile;
+			this.systemName = systemName;
+			this.file = file;
+		}
+	}
+}
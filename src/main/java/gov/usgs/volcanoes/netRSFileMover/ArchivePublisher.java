@@ -0,0 +1,220 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Move completed downloads into the archive. A file is never visible in the
+ * archive until it's complete.
+ *
+ * When the temp file and archive are on the same filesystem the file is simply
+ * renamed. Otherwise it's copied to a hidden file beside its destination and
+ * renamed from there. If files are to be compressed they're always gzipped
+ * into a hidden file beside their destination, in a single pass over the
+ * download.
+ */
+public class ArchivePublisher {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ArchivePublisher.class);
+
+	/** prefix of partially copied files in the archive */
+	public static final String PARTIAL_PREFIX = ".";
+
+	/** suffix of partially copied files in the archive */
+	public static final String PARTIAL_SUFFIX = ".part";
+
+	/** suffix of gzipped files in the archive */
+	public static final String GZIP_SUFFIX = ".gz";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final boolean fsync;
+	private final boolean gzip;
+	private final int level;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param fsync
+	 *            if true, force files to disk before they're published
+	 */
+	public ArchivePublisher(boolean fsync) {
+		this(fsync, false, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Constructor for an archive of compressed files.
+	 *
+	 * @param fsync
+	 *            if true, force files to disk before they're published
+	 * @param gzip
+	 *            if true, gzip files as they're published
+	 * @param level
+	 *            compression level, from 1 to 9
+	 */
+	public ArchivePublisher(boolean fsync, boolean gzip, int level) {
+		this.fsync = fsync;
+		this.gzip = gzip;
+		this.level = level;
+	}
+
+	/**
+	 * Name a file as it will appear in the archive.
+	 *
+	 * @param name
+	 *            name of the download
+	 * @return name in the archive
+	 */
+	public String getArchiveName(String name) {
+		return gzip ? name + GZIP_SUFFIX : name;
+	}
+
+	/**
+	 * Move a file into the archive, replacing anything already there.
+	 *
+	 * @param sourceFile
+	 *            completed download
+	 * @param destFile
+	 *            location in the archive
+	 * @throws IOException
+	 */
+	public void publish(File sourceFile, File destFile) throws IOException {
+		File p = destFile.getParentFile();
+		if (!p.exists())
+			p.mkdirs();
+
+		Path source = sourceFile.toPath();
+		Path dest = destFile.toPath();
+
+		if (gzip) {
+			Path partial = dest.resolveSibling(PARTIAL_PREFIX + destFile.getName() + PARTIAL_SUFFIX);
+			try {
+				compress(source, partial);
+				Files.move(partial, dest, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(partial);
+			}
+			Files.delete(source);
+
+			if (fsync)
+				forceDirectory(dest.getParent());
+			return;
+		}
+
+		if (fsync)
+			force(source);
+
+		try {
+			Files.move(source, dest, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			LOGGER.debug("Can't rename " + sourceFile + " to " + destFile + ". I'll copy it.");
+
+			Path partial = dest.resolveSibling(PARTIAL_PREFIX + destFile.getName() + PARTIAL_SUFFIX);
+			try {
+				copy(source, partial);
+				Files.move(partial, dest, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(partial);
+			}
+			Files.delete(source);
+		}
+
+		if (fsync)
+			forceDirectory(dest.getParent());
+	}
+
+	private void copy(Path source, Path dest) throws IOException {
+		FileChannel in = null;
+		FileChannel out = null;
+		try {
+			in = FileChannel.open(source, StandardOpenOption.READ);
+			out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+
+			long size = in.size();
+			long position = 0;
+			while (position < size)
+				position += in.transferTo(position, size - position, out);
+
+			if (fsync)
+				out.force(true);
+		} finally {
+			if (in != null)
+				in.close();
+
+			if (out != null)
+				out.close();
+		}
+	}
+
+	private void compress(Path source, Path dest) throws IOException {
+		InputStream in = null;
+		FileOutputStream file = null;
+		GZIPOutputStream out = null;
+		try {
+			in = Files.newInputStream(source);
+			file = new FileOutputStream(dest.toFile());
+			out = new GZIPOutputStream(file, BUFFER_SIZE) {
+				{
+					def.setLevel(level);
+				}
+			};
+
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+			out.finish();
+
+			if (fsync)
+				file.getChannel().force(true);
+		} finally {
+			if (in != null)
+				in.close();
+
+			// closing the GZIPOutputStream also frees its Deflater
+			if (out != null)
+				out.close();
+			else if (file != null)
+				file.close();
+		}
+	}
+
+	private static void force(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Make a rename durable. Not every platform allows a directory to be
+	 * opened, so failure is not an error.
+	 */
+	private static void forceDirectory(Path directory) {
+		try {
+			FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			LOGGER.debug("Can't sync directory " + directory + ". " + e.getMessage());
+		}
+	}
+}
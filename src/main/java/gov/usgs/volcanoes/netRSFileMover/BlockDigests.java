@@ -0,0 +1,295 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Digests of a file, computed as its bytes arrive rather than by reading it
+ * back. The file is divided into fixed size blocks, each with its own digest,
+ * so a damaged range can be found and fetched again. While bytes arrive in
+ * order from the start of the file a digest of the whole file is kept too.
+ *
+ * Blocks may be filled in any order, as they are by a segmented download, but
+ * the bytes of each block must arrive in order.
+ */
+public class BlockDigests {
+
+	/** algorithm name for CRC-32, which MessageDigest doesn't provide */
+	public static final String CRC32 = "CRC32";
+
+	private final String algorithm;
+	private final int blockSize;
+	private final List<byte[]> blocks;
+	private final Map<Long, Partial> partials;
+
+	private MessageDigest whole;
+	private byte[] wholeDigest;
+	private long length;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param algorithm
+	 *            CRC32 or any MessageDigest algorithm
+	 * @param blockSize
+	 *            bytes in each block
+	 * @throws IllegalArgumentException
+	 *             if the algorithm isn't available
+	 */
+	public BlockDigests(String algorithm, int blockSize) {
+		this.algorithm = algorithm;
+		this.blockSize = blockSize;
+		blocks = new ArrayList<byte[]>();
+		partials = new HashMap<Long, Partial>();
+		reset();
+	}
+
+	/**
+	 * Forget everything.
+	 */
+	public synchronized void reset() {
+		blocks.clear();
+		partials.clear();
+		whole = newDigest();
+		wholeDigest = null;
+		length = 0;
+	}
+
+	/**
+	 * Add bytes written to the file.
+	 *
+	 * @param position
+	 *            offset in the file of the first byte
+	 * @param b
+	 * @param off
+	 * @param len
+	 */
+	public synchronized void update(long position, byte[] b, int off, int len) {
+		if (position == length) {
+			length += len;
+			if (whole != null)
+				whole.update(b, off, len);
+		} else {
+			length = -1;
+			whole = null;
+		}
+
+		while (len > 0) {
+			long block = position / blockSize;
+			int within = (int) (position % blockSize);
+			int n = Math.min(len, blockSize - within);
+
+			Partial partial = partials.get(block);
+			if (partial == null) {
+				if (within != 0)
+					throw new IllegalStateException("Bytes of block " + block + " arrived out of order.");
+				partial = new Partial(newDigest());
+				partials.put(block, partial);
+			} else if (partial.count != within) {
+				throw new IllegalStateException("Bytes of block " + block + " arrived out of order.");
+			}
+
+			partial.digest.update(b, off, n);
+			partial.count += n;
+			if (partial.count == blockSize) {
+				setBlock(block, partial.digest.digest());
+				partials.remove(block);
+			}
+
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Close off the last block, which may be short.
+	 *
+	 * @param fileLength
+	 *            length of the complete file
+	 */
+	public synchronized void finish(long fileLength) {
+		if (fileLength == 0)
+			return;
+
+		long last = (fileLength - 1) / blockSize;
+		Partial partial = partials.get(last);
+		if (partial != null && last * blockSize + partial.count == fileLength) {
+			setBlock(last, partial.digest.digest());
+			partials.remove(last);
+		}
+
+		if (whole != null && length == fileLength) {
+			wholeDigest = whole.digest();
+			whole = null;
+		}
+	}
+
+	/**
+	 * Forget a block, ready for it to be written again.
+	 *
+	 * @param block
+	 */
+	public synchronized void resetBlock(long block) {
+		if (block < blocks.size())
+			blocks.set((int) block, null);
+		partials.remove(block);
+		whole = null;
+		wholeDigest = null;
+		length = -1;
+	}
+
+	/**
+	 * Bring me up to date with the bytes already in a file, such as a partial
+	 * download about to be resumed. Only bytes I haven't seen are read, unless
+	 * the file has been cut short or written out of order.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public synchronized void sync(File file) throws IOException {
+		long fileLength = file.length();
+		if (length == fileLength)
+			return;
+
+		if (length < 0 || length > fileLength)
+			reset();
+
+		InputStream in = new FileInputStream(file);
+		try {
+			long skipped = 0;
+			while (skipped < length) {
+				long n = in.skip(length - skipped);
+				if (n <= 0)
+					throw new IOException("Couldn't skip to " + length + " in " + file);
+				skipped += n;
+			}
+
+			byte[] buffer = new byte[blockSize];
+			int n;
+			while (length < fileLength && (n = in.read(buffer, 0, (int) Math.min(buffer.length, fileLength - length))) > 0)
+				update(length, buffer, 0, n);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return bytes in each block
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return algorithm I use
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return bytes received in order from the start of the file, or -1 if
+	 *         they arrived out of order
+	 */
+	public synchronized long getLength() {
+		return length;
+	}
+
+	/**
+	 * @param block
+	 * @return digest of a complete block, or null if I don't have one
+	 */
+	public synchronized byte[] getBlock(long block) {
+		return block < blocks.size() ? blocks.get((int) block) : null;
+	}
+
+	/**
+	 * @return digest of the whole file, or null if it wasn't received in order
+	 *         or hasn't been finished
+	 */
+	public synchronized byte[] getWhole() {
+		return wholeDigest;
+	}
+
+	private void setBlock(long block, byte[] digest) {
+		while (blocks.size() <= block)
+			blocks.add(null);
+		blocks.set((int) block, digest);
+	}
+
+	private MessageDigest newDigest() {
+		if (CRC32.equals(algorithm))
+			return new Crc32Digest();
+
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("I don't know how to compute " + algorithm);
+		}
+	}
+
+	/**
+	 * Render a digest as the receiver would, in lower case hex.
+	 *
+	 * @param digest
+	 * @return hex string
+	 */
+	public static String toHex(byte[] digest) {
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * A block still being filled.
+	 */
+	private static class Partial {
+		private final MessageDigest digest;
+		private int count;
+
+		private Partial(MessageDigest digest) {
+			this.digest = digest;
+		}
+	}
+
+	/**
+	 * CRC-32 dressed as a MessageDigest, big-endian as servers report it.
+	 */
+	private static class Crc32Digest extends MessageDigest {
+		private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+
+		private Crc32Digest() {
+			super(CRC32);
+		}
+
+		protected void engineUpdate(byte input) {
+			crc.update(input);
+		}
+
+		protected void engineUpdate(byte[] input, int offset, int len) {
+			crc.update(input, offset, len);
+		}
+
+		protected byte[] engineDigest() {
+			long value = crc.getValue();
+			crc.reset();
+			return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+		}
+
+		protected void engineReset() {
+			crc.reset();
+		}
+	}
+}
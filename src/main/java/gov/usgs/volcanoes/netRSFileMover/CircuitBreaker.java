@@ -0,0 +1,112 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stop trying to reach a receiver which keeps failing to answer. After enough
+ * consecutive connection failures the breaker opens and every request is
+ * refused for a cool-down period. After that a single probe is let through;
+ * if it connects the breaker closes, otherwise it opens again.
+ */
+public class CircuitBreaker {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	/**
+	 * Breaker states.
+	 */
+	public enum State {
+		/** requests flow normally */
+		CLOSED,
+		/** requests are refused */
+		OPEN,
+		/** a single probe is in flight */
+		HALF_OPEN
+	}
+
+	private final String name;
+	private final int threshold;
+	private final long coolDown;
+
+	private State state;
+	private int failures;
+	private long openedAt;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param name
+	 *            what I'm protecting, for log messages
+	 * @param threshold
+	 *            consecutive failures which open the breaker, or a value less
+	 *            than one to never open it
+	 * @param coolDown
+	 *            time to refuse requests once open, in ms
+	 */
+	public CircuitBreaker(String name, int threshold, long coolDown) {
+		this.name = name;
+		this.threshold = threshold;
+		this.coolDown = coolDown;
+		state = State.CLOSED;
+	}
+
+	/**
+	 * Ask to make a request. Once the cool-down has passed the first caller is
+	 * given the probe.
+	 *
+	 * @return true if the request may go ahead
+	 */
+	public synchronized boolean allowRequest() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (System.currentTimeMillis() - openedAt < coolDown)
+				return false;
+			LOGGER.info("Probing " + name + " after " + coolDown / 1000 + " s.");
+			state = State.HALF_OPEN;
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Record a successful connection.
+	 */
+	public synchronized void recordSuccess() {
+		if (state != State.CLOSED)
+			LOGGER.info(name + " is reachable again.");
+
+		state = State.CLOSED;
+		failures = 0;
+	}
+
+	/**
+	 * Record a failed connection.
+	 */
+	public synchronized void recordFailure() {
+		failures++;
+		if (state == State.HALF_OPEN || (threshold > 0 && failures >= threshold)) {
+			if (state != State.OPEN)
+				LOGGER.info("Giving up on " + name + " for " + coolDown / 1000 + " s after " + failures
+						+ " failed connections.");
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return my current state
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return when the next probe will be allowed, in ms, or 0 if I'm not open
+	 */
+	public synchronized long getRetryTime() {
+		return state == State.OPEN ? openedAt + coolDown : 0;
+	}
+}
@@ -0,0 +1,94 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+
+/**
+ * Run an external command for each archived file. {receiver} and {file} in
+ * the command are replaced with the receiver's name and the file's path. The
+ * command is split on white space and run without a shell. Its output is
+ * logged, and the file is handed over again if it exits with anything but 0
+ * or runs too long.
+ */
+public class CommandHandler implements ArchiveHandler {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CommandHandler.class);
+
+	/** kills commands which have run too long */
+	private static final ScheduledExecutorService WATCHDOG = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "command watchdog");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final String[] command;
+	private final int timeout;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param command
+	 *            command line, with {receiver} and {file} to be replaced
+	 * @param timeout
+	 *            seconds to let the command run
+	 */
+	public CommandHandler(String command, int timeout) {
+		this.command = command.trim().split("\\s+");
+		this.timeout = timeout;
+	}
+
+	public void configure(ConfigFile config) {
+	}
+
+	public void handle(String systemName, File file) throws IOException {
+		List<String> args = new ArrayList<String>();
+		for (String arg : command)
+			args.add(arg.replace("{receiver}", systemName).replace("{file}", file.getPath()));
+
+		final Process process = new ProcessBuilder(args).redirectErrorStream(true).start();
+		ScheduledFuture<?> kill = WATCHDOG.schedule(new Runnable() {
+			public void run() {
+				LOGGER.warn(command[0] + " is taking too long. Killing it.");
+				process.destroy();
+			}
+		}, timeout, TimeUnit.SECONDS);
+
+		BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		try {
+			String line;
+			while ((line = output.readLine()) != null)
+				LOGGER.debug(command[0] + ": " + line);
+
+			int exitValue = process.waitFor();
+			if (exitValue != 0)
+				throw new IOException(command[0] + " exited with " + exitValue + " for " + file);
+		} catch (InterruptedException e) {
+			process.destroy();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted running " + command[0] + " for " + file);
+		} finally {
+			kill.cancel(false);
+			output.close();
+		}
+	}
+
+	public String toString() {
+		return command[0];
+	}
+}
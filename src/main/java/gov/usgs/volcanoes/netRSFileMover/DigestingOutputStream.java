@@ -0,0 +1,40 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Add bytes to a file's digests on their way to the file.
+ */
+public class DigestingOutputStream extends FilterOutputStream {
+
+	private final BlockDigests digests;
+	private long position;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param out
+	 *            stream to write to
+	 * @param digests
+	 *            digests of the file
+	 * @param position
+	 *            offset in the file of the first byte I'll write
+	 */
+	public DigestingOutputStream(OutputStream out, BlockDigests digests, long position) {
+		super(out);
+		this.digests = digests;
+		this.position = position;
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		digests.update(position, b, off, len);
+		position += len;
+	}
+}
@@ -0,0 +1,317 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Render file names for intervals, and parse them back, from a pattern such
+ * as NetRSSettings.getFileNameFormat() produces. Patterns use the
+ * SimpleDateFormat letters yyyy, MM, dd, HH, mm and ss, with literal text in
+ * single quotes. Times are UTC.
+ *
+ * The pattern is compiled once. Every name it renders is the same length and
+ * rendering works from integer arithmetic alone, so a name can be written
+ * into a caller's buffer without allocating. Instances are immutable and may
+ * be shared between threads.
+ */
+public class FileNameFormat {
+
+	/** returned by parse() for names which don't match */
+	public static final long NO_MATCH = Long.MIN_VALUE;
+
+	private static final long MS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+	/** kinds of pattern element */
+	private static final int LITERAL = 0;
+	private static final int YEAR = 1;
+	private static final int MONTH = 2;
+	private static final int DAY = 3;
+	private static final int HOUR = 4;
+	private static final int MINUTE = 5;
+	private static final int SECOND = 6;
+
+	private final String pattern;
+	private final int[] kinds;
+	private final String[] literals;
+	private final int[] offsets;
+	private final int length;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param pattern
+	 *            the pattern to compile
+	 * @throws IllegalArgumentException
+	 *             if the pattern uses anything I don't understand
+	 */
+	public FileNameFormat(String pattern) {
+		this.pattern = pattern;
+
+		List<Integer> kindList = new ArrayList<Integer>();
+		List<String> literalList = new ArrayList<String>();
+		StringBuilder literal = new StringBuilder();
+
+		int i = 0;
+		while (i < pattern.length()) {
+			char c = pattern.charAt(i);
+			if (c == '\'') {
+				int end = i + 1;
+				while (true) {
+					if (end >= pattern.length())
+						throw new IllegalArgumentException("Unterminated quote in " + pattern);
+					if (pattern.charAt(end) == '\'') {
+						if (end + 1 < pattern.length() && pattern.charAt(end + 1) == '\'') {
+							literal.append('\'');
+							end += 2;
+							continue;
+						}
+						break;
+					}
+					literal.append(pattern.charAt(end++));
+				}
+				if (end == i + 1)
+					literal.append('\'');
+				i = end + 1;
+			} else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+				int end = i;
+				while (end < pattern.length() && pattern.charAt(end) == c)
+					end++;
+
+				int kind = fieldKind(pattern.substring(i, end));
+				if (literal.length() > 0) {
+					kindList.add(LITERAL);
+					literalList.add(literal.toString());
+					literal.setLength(0);
+				}
+				kindList.add(kind);
+				literalList.add(null);
+				i = end;
+			} else {
+				literal.append(c);
+				i++;
+			}
+		}
+		if (literal.length() > 0) {
+			kindList.add(LITERAL);
+			literalList.add(literal.toString());
+		}
+
+		kinds = new int[kindList.size()];
+		literals = new String[kinds.length];
+		offsets = new int[kinds.length];
+		int offset = 0;
+		for (int j = 0; j < kinds.length; j++) {
+			kinds[j] = kindList.get(j);
+			literals[j] = literalList.get(j);
+			offsets[j] = offset;
+			offset += width(j);
+		}
+		length = offset;
+	}
+
+	private static int fieldKind(String field) {
+		if (field.equals("yyyy"))
+			return YEAR;
+		if (field.equals("MM"))
+			return MONTH;
+		if (field.equals("dd"))
+			return DAY;
+		if (field.equals("HH"))
+			return HOUR;
+		if (field.equals("mm"))
+			return MINUTE;
+		if (field.equals("ss"))
+			return SECOND;
+
+		throw new IllegalArgumentException("I don't understand " + field + " in a file name format.");
+	}
+
+	private int width(int element) {
+		switch (kinds[element]) {
+		case LITERAL:
+			return literals[element].length();
+		case YEAR:
+			return 4;
+		default:
+			return 2;
+		}
+	}
+
+	/**
+	 * @return length of every name I render
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Render the name of an interval.
+	 *
+	 * @param time
+	 *            start of the interval, in ms
+	 * @return the file name
+	 */
+	public String format(long time) {
+		char[] name = new char[length];
+		format(time, name, 0);
+		return new String(name);
+	}
+
+	/**
+	 * Render the name of an interval into a buffer, without allocating.
+	 *
+	 * @param time
+	 *            start of the interval, in ms
+	 * @param buffer
+	 *            where to write the name, with room for length() chars
+	 * @param start
+	 *            index in the buffer to start writing at
+	 */
+	public void format(long time, char[] buffer, int start) {
+		long days = floorDiv(time, MS_PER_DAY);
+		int msOfDay = (int) (time - days * MS_PER_DAY);
+
+		// civil date from days since the epoch, after Howard Hinnant
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		int doe = (int) (z - era * 146097);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int day = doy - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		int year = (int) (yoe + era * 400) + (month <= 2 ? 1 : 0);
+
+		int secondOfDay = msOfDay / 1000;
+		for (int i = 0; i < kinds.length; i++) {
+			int at = start + offsets[i];
+			switch (kinds[i]) {
+			case LITERAL:
+				literals[i].getChars(0, literals[i].length(), buffer, at);
+				break;
+			case YEAR:
+				digits(year, 4, buffer, at);
+				break;
+			case MONTH:
+				digits(month, 2, buffer, at);
+				break;
+			case DAY:
+				digits(day, 2, buffer, at);
+				break;
+			case HOUR:
+				digits(secondOfDay / 3600, 2, buffer, at);
+				break;
+			case MINUTE:
+				digits(secondOfDay / 60 % 60, 2, buffer, at);
+				break;
+			case SECOND:
+				digits(secondOfDay % 60, 2, buffer, at);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Parse a name back into the start of its interval.
+	 *
+	 * @param name
+	 *            a file name, as rendered by format()
+	 * @return start of the interval in ms, or NO_MATCH if the name doesn't
+	 *         match my pattern
+	 */
+	public long parse(CharSequence name) {
+		if (name.length() != length)
+			return NO_MATCH;
+
+		// a field may appear more than once, as in a directory and a name,
+		// and must agree with itself
+		int[] fields = { -1, -1, -1, -1, -1, -1, -1 };
+		for (int i = 0; i < kinds.length; i++) {
+			int at = offsets[i];
+			if (kinds[i] == LITERAL) {
+				String literal = literals[i];
+				for (int j = 0; j < literal.length(); j++)
+					if (name.charAt(at + j) != literal.charAt(j))
+						return NO_MATCH;
+				continue;
+			}
+
+			int value = parseDigits(name, at, width(i));
+			if (value < 0 || (fields[kinds[i]] >= 0 && fields[kinds[i]] != value))
+				return NO_MATCH;
+			fields[kinds[i]] = value;
+		}
+
+		int year = fields[YEAR] < 0 ? 1970 : fields[YEAR];
+		int month = fields[MONTH] < 0 ? 1 : fields[MONTH];
+		int day = fields[DAY] < 0 ? 1 : fields[DAY];
+		int hour = Math.max(0, fields[HOUR]);
+		int minute = Math.max(0, fields[MINUTE]);
+		int second = Math.max(0, fields[SECOND]);
+
+		if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || hour > 23 || minute > 59
+				|| second > 59)
+			return NO_MATCH;
+
+		return daysFromCivil(year, month, day) * MS_PER_DAY + ((hour * 60 + minute) * 60 + second) * 1000L;
+	}
+
+	/**
+	 * @return the pattern I was compiled from
+	 */
+	public String getPattern() {
+		return pattern;
+	}
+
+	public String toString() {
+		return pattern;
+	}
+
+	private static void digits(int value, int width, char[] buffer, int at) {
+		for (int i = at + width - 1; i >= at; i--) {
+			buffer[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+	private static int parseDigits(CharSequence s, int at, int width) {
+		int value = 0;
+		for (int i = at; i < at + width; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		switch (month) {
+		case 2:
+			return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	private static long daysFromCivil(int year, int month, int day) {
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yoe = y - era * 400;
+		long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if ((x % y != 0) && ((x ^ y) < 0))
+			q--;
+		return q;
+	}
+}
@@ -0,0 +1,175 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The intervals missing from a receiver's archive, as found by
+ * NetRSConnection.reconcile(). Consecutive intervals which the receiver does
+ * or doesn't have are kept as a single run, so a year of gaps stays small.
+ */
+public class GapReport {
+
+	/** how times are shown in the report */
+	private static final FileNameFormat TIME_FORMAT = new FileNameFormat("yyyy-MM-dd HH:mm");
+
+	/**
+	 * What the receiver can tell me about a gap.
+	 */
+	public enum Availability {
+		/** receiver has the file */
+		AVAILABLE,
+		/** receiver doesn't have the file */
+		ABSENT,
+		/** receiver couldn't be listed */
+		UNKNOWN
+	}
+
+	/**
+	 * Consecutive missing intervals which share an availability.
+	 */
+	public static class Run {
+		/** start of the newest interval in ms */
+		public final long newest;
+		/** what the receiver can tell me */
+		public final Availability availability;
+		private long oldest;
+		private int count;
+
+		private Run(long interval, Availability availability) {
+			newest = interval;
+			oldest = interval;
+			count = 1;
+			this.availability = availability;
+		}
+
+		/**
+		 * @return start of the oldest interval in ms
+		 */
+		public long getOldest() {
+			return oldest;
+		}
+
+		/**
+		 * @return number of intervals in the run
+		 */
+		public int getCount() {
+			return count;
+		}
+	}
+
+	private final String systemName;
+	private final long duration;
+	private final int expected;
+	private final List<Run> runs;
+	private int missing;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param systemName
+	 *            receiver I describe
+	 * @param duration
+	 *            length of an interval in ms
+	 * @param expected
+	 *            number of intervals in the receiver's time span
+	 */
+	public GapReport(String systemName, long duration, int expected) {
+		this.systemName = systemName;
+		this.duration = duration;
+		this.expected = expected;
+		runs = new ArrayList<Run>();
+	}
+
+	/**
+	 * Record a missing interval. Intervals must be added newest first.
+	 *
+	 * @param interval
+	 *            start of the interval in ms
+	 * @param availability
+	 *            what the receiver can tell me about it
+	 */
+	public void add(long interval, Availability availability) {
+		missing++;
+
+		Run last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+		if (last != null && last.availability == availability && last.oldest - duration == interval) {
+			last.oldest = interval;
+			last.count++;
+		} else {
+			runs.add(new Run(interval, availability));
+		}
+	}
+
+	/**
+	 * @return the gaps, newest first
+	 */
+	public List<Run> getRuns() {
+		return runs;
+	}
+
+	/**
+	 * @return number of intervals in the receiver's time span
+	 */
+	public int getExpected() {
+		return expected;
+	}
+
+	/**
+	 * @return number of intervals missing from the archive
+	 */
+	public int getMissing() {
+		return missing;
+	}
+
+	/**
+	 * Count missing intervals of a single availability.
+	 *
+	 * @param availability
+	 * @return number of intervals
+	 */
+	public int count(Availability availability) {
+		int count = 0;
+		for (Run run : runs)
+			if (run.availability == availability)
+				count += run.count;
+
+		return count;
+	}
+
+	/**
+	 * List the gaps worth polling for: those the receiver has, and those it
+	 * couldn't tell me about.
+	 *
+	 * @return start of each interval in ms, newest first
+	 */
+	public long[] getFetchable() {
+		long[] intervals = new long[missing - count(Availability.ABSENT)];
+		int i = 0;
+		for (Run run : runs)
+			if (run.availability != Availability.ABSENT)
+				for (long interval = run.newest; interval >= run.oldest; interval -= duration)
+					intervals[i++] = interval;
+
+		return intervals;
+	}
+
+	/**
+	 * Print the report, one line per run.
+	 *
+	 * @param out
+	 */
+	public void print(PrintStream out) {
+		out.println(systemName + ": " + expected + " expected, " + (expected - missing) + " archived, "
+				+ count(Availability.AVAILABLE) + " available, " + count(Availability.ABSENT) + " absent, "
+				+ count(Availability.UNKNOWN) + " unknown");
+
+		for (Run run : runs) {
+			String span = TIME_FORMAT.format(run.oldest);
+			if (run.count > 1)
+				span += " to " + TIME_FORMAT.format(run.newest);
+			out.println("  " + span + "  " + run.count + " " + run.availability.toString().toLowerCase());
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.util.Arrays;
+
+/**
+ * Count observations in fixed buckets, Prometheus style. Each bucket counts
+ * observations less than or equal to its upper bound; anything larger falls
+ * into a final, unbounded bucket.
+ */
+public class Histogram {
+
+	/** bucket bounds for latencies, in seconds */
+	public static final double[] LATENCY_BUCKETS = { 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+	/** bucket bounds for throughput, in bytes per second */
+	public static final double[] THROUGHPUT_BUCKETS = { 100, 300, 1000, 3000, 10000, 30000, 100000, 300000,
+			1000000, 3000000, 10000000 };
+
+	private final double[] bounds;
+	private final long[] counts;
+	private long count;
+	private double sum;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param bounds
+	 *            upper bound of each bucket, ascending
+	 */
+	public Histogram(double[] bounds) {
+		this.bounds = bounds.clone();
+		counts = new long[bounds.length + 1];
+	}
+
+	/**
+	 * Record an observation.
+	 *
+	 * @param value
+	 */
+	public synchronized void observe(double value) {
+		int i = Arrays.binarySearch(bounds, value);
+		if (i < 0)
+			i = -i - 1;
+
+		counts[i]++;
+		count++;
+		sum += value;
+	}
+
+	/**
+	 * @return upper bound of each bucket, not including the unbounded one
+	 */
+	public double[] getBounds() {
+		return bounds.clone();
+	}
+
+	/**
+	 * @return cumulative count for each bucket, ending with the unbounded one
+	 */
+	public synchronized long[] getCumulativeCounts() {
+		long[] cumulative = new long[counts.length];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			total += counts[i];
+			cumulative[i] = total;
+		}
+		return cumulative;
+	}
+
+	/**
+	 * @return number of observations
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return sum of all observations
+	 */
+	public synchronized double getSum() {
+		return sum;
+	}
+
+	/**
+	 * @return mean observation, or 0 if there are none
+	 */
+	public synchronized double getMean() {
+		return count == 0 ? 0 : sum / count;
+	}
+}
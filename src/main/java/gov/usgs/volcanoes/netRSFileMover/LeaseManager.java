@@ -0,0 +1,343 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Leases which share receivers among several NetRSFileMovers, kept in a
+ * directory they all mount. Receivers are leased a site at a time, so site
+ * limits still hold. Each node announces itself with a heartbeat file and
+ * takes its share of the sites: all of them divided by the number of live
+ * nodes. If a node dies its heartbeat and leases expire and the survivors take
+ * over its sites. When a node joins the others give up sites until each holds
+ * its share. A site being polled is given up once the poll finishes.
+ *
+ * Files in the lease directory are only changed while holding a lock on
+ * .lock, so the filesystem must support locks, as NFSv4 does. Expiry times
+ * are compared across nodes, so their clocks must agree to well within a lease
+ * duration.
+ */
+public class LeaseManager {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LeaseManager.class);
+
+	public static final String LEASE_SUFFIX = ".lease";
+	public static final String NODE_SUFFIX = ".node";
+	public static final String LOCK_FILE = ".lock";
+
+	private final File leaseDir;
+	private final String node;
+	private final long duration;
+	private final List<String> sites;
+	private final Set<String> owned;
+	private final Set<String> draining;
+
+	private long expires;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param leaseDir
+	 *            directory shared by all nodes
+	 * @param node
+	 *            my name, unique among the nodes
+	 * @param duration
+	 *            how long a lease lasts without renewal, in ms
+	 * @param sites
+	 *            sites to share, in the order I prefer to take them
+	 */
+	public LeaseManager(File leaseDir, String node, long duration, Collection<String> sites) {
+		this.leaseDir = leaseDir;
+		this.node = node;
+		this.duration = duration;
+		this.sites = new ArrayList<String>(new LinkedHashSet<String>(sites));
+		owned = new LinkedHashSet<String>();
+		draining = new LinkedHashSet<String>();
+	}
+
+	/**
+	 * @param site
+	 * @return true if I hold the site's lease and may start polling it
+	 */
+	public synchronized boolean owns(String site) {
+		return System.currentTimeMillis() < expires && owned.contains(site);
+	}
+
+	/**
+	 * List the sites I may start polling. If I haven't managed to renew my
+	 * leases before they expired, another node may have taken them, so I own
+	 * nothing.
+	 *
+	 * @return sites I hold leases on
+	 */
+	public synchronized Set<String> getOwned() {
+		if (System.currentTimeMillis() < expires)
+			return new LinkedHashSet<String>(owned);
+		else
+			return Collections.emptySet();
+	}
+
+	/**
+	 * Renew my heartbeat and leases without taking or giving up sites.
+	 *
+	 * @throws IOException
+	 *             if the lease directory can't be updated
+	 */
+	public synchronized void renew() throws IOException {
+		FileChannel lock = lock();
+		try {
+			long now = System.currentTimeMillis();
+			heartbeat(now);
+			renewLeases(now);
+			expires = now + duration;
+		} finally {
+			close(lock);
+		}
+	}
+
+	/**
+	 * Renew my heartbeat and leases, then take or give up sites until I hold
+	 * my share.
+	 *
+	 * @param busy
+	 *            sites being polled, which I won't give up yet
+	 * @return sites I hold leases on
+	 * @throws IOException
+	 *             if the lease directory can't be updated
+	 */
+	public synchronized Set<String> balance(Set<String> busy) throws IOException {
+		FileChannel lock = lock();
+		try {
+			long now = System.currentTimeMillis();
+			heartbeat(now);
+			renewLeases(now);
+			expires = now + duration;
+
+			int nodes = countNodes(now);
+			int share = (sites.size() + nodes - 1) / nodes;
+
+			// give up sites beyond my share, newest taken first
+			List<String> mine = new ArrayList<String>(owned);
+			for (int i = mine.size() - 1; i >= 0 && owned.size() > share; i--) {
+				String site = mine.get(i);
+				owned.remove(site);
+				draining.add(site);
+				LOGGER.info("Giving up " + site + " to make room for other nodes.");
+			}
+
+			// take back a site I was giving up before looking for a free one
+			for (String site : new ArrayList<String>(draining)) {
+				if (owned.size() >= share)
+					break;
+				draining.remove(site);
+				owned.add(site);
+			}
+
+			for (String site : draining.toArray(new String[draining.size()])) {
+				if (!busy.contains(site)) {
+					release(site);
+					draining.remove(site);
+				}
+			}
+
+			for (String site : sites) {
+				if (owned.size() >= share)
+					break;
+				if (owned.contains(site) || draining.contains(site))
+					continue;
+
+				Lease lease = read(site);
+				if (lease == null || lease.expires <= now || node.equals(lease.owner)) {
+					write(site, now + duration);
+					owned.add(site);
+					LOGGER.info("Took " + site + (lease == null || node.equals(lease.owner) ? "." : " from "
+							+ lease.owner + ", whose lease expired."));
+				}
+			}
+
+			return new LinkedHashSet<String>(owned);
+		} finally {
+			close(lock);
+		}
+	}
+
+	/**
+	 * Give up every lease and stop announcing myself, so other nodes can take
+	 * my sites straight away.
+	 */
+	public synchronized void close() {
+		try {
+			FileChannel lock = lock();
+			try {
+				for (String site : owned)
+					release(site);
+				for (String site : draining)
+					release(site);
+				Files.deleteIfExists(new File(leaseDir, node + NODE_SUFFIX).toPath());
+			} finally {
+				close(lock);
+			}
+		} catch (IOException e) {
+			LOGGER.error("Couldn't release leases in " + leaseDir + ". " + e.getMessage());
+		}
+		owned.clear();
+		draining.clear();
+		expires = 0;
+	}
+
+	/**
+	 * Renew the leases I hold, dropping any another node has taken.
+	 */
+	private void renewLeases(long now) throws IOException {
+		renewLeases(owned, now);
+		renewLeases(draining, now);
+	}
+
+	private void renewLeases(Set<String> held, long now) throws IOException {
+		for (String site : held.toArray(new String[held.size()])) {
+			Lease lease = read(site);
+			if (lease != null && !node.equals(lease.owner)) {
+				LOGGER.warn("Lost " + site + " to " + lease.owner + ".");
+				held.remove(site);
+			} else {
+				write(site, now + duration);
+			}
+		}
+	}
+
+	private void heartbeat(long now) throws IOException {
+		writeAtomically(new File(leaseDir, node + NODE_SUFFIX), node + "\t" + (now + duration) + "\n");
+	}
+
+	/**
+	 * Count nodes whose heartbeat hasn't expired, including me.
+	 */
+	private int countNodes(long now) {
+		int nodes = 1;
+		File[] files = leaseDir.listFiles();
+		if (files == null)
+			return nodes;
+
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(NODE_SUFFIX) || name.equals(node + NODE_SUFFIX))
+				continue;
+
+			Lease heartbeat = read(file);
+			if (heartbeat != null && heartbeat.expires > now)
+				nodes++;
+		}
+		return nodes;
+	}
+
+	private void release(String site) throws IOException {
+		Lease lease = read(site);
+		if (lease != null && node.equals(lease.owner))
+			Files.deleteIfExists(new File(leaseDir, site + LEASE_SUFFIX).toPath());
+	}
+
+	private Lease read(String site) {
+		return read(new File(leaseDir, site + LEASE_SUFFIX));
+	}
+
+	/**
+	 * Read a lease or heartbeat: owner and expiry time, tab separated.
+	 *
+	 * @return the lease, or null if there isn't a readable one
+	 */
+	private static Lease read(File file) {
+		if (!file.exists())
+			return null;
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			String line = reader.readLine();
+			String[] fields = line == null ? new String[0] : line.split("\t");
+			if (fields.length != 2)
+				return null;
+
+			return new Lease(fields[0], Long.parseLong(fields[1]));
+		} catch (IOException e) {
+			return null;
+		} catch (NumberFormatException e) {
+			return null;
+		} finally {
+			close(reader);
+		}
+	}
+
+	private void write(String site, long expires) throws IOException {
+		writeAtomically(new File(leaseDir, site + LEASE_SUFFIX), node + "\t" + expires + "\n");
+	}
+
+	/**
+	 * Replace a file's contents so readers see either the old or the new.
+	 */
+	private void writeAtomically(File file, String contents) throws IOException {
+		File tmp = new File(leaseDir, "." + node + ".tmp");
+		Writer writer = new FileWriter(tmp);
+		try {
+			writer.write(contents);
+		} finally {
+			writer.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Take the lock every node holds while changing the lease directory. The
+	 * lock is released when the channel is closed.
+	 */
+	private FileChannel lock() throws IOException {
+		leaseDir.mkdirs();
+		FileChannel channel = FileChannel.open(new File(leaseDir, LOCK_FILE).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		try {
+			channel.lock();
+		} catch (IOException e) {
+			close(channel);
+			throw e;
+		}
+		return channel;
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable != null)
+			try {
+				closeable.close();
+			} catch (IOException e) {
+			}
+	}
+
+	/**
+	 * Who holds a lease, and until when.
+	 */
+	private static class Lease {
+		private final String owner;
+		private final long expires;
+
+		private Lease(String owner, long expires) {
+			this.owner = owner;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measure a receiver's link and tune transfers to suit it. Round-trip time
+ * and achieved throughput are smoothed and kept in a small file so tuning
+ * survives a restart.
+ *
+ * The throttle rate is raised while transfers keep up with it and cut back
+ * when the round-trip time swells, a sign the link is queuing. A transfer that
+ * falls short of the rate without swelling the round-trip time is probably
+ * limited by the TCP window, so another segment is tried. The receive buffer
+ * is sized to the bandwidth-delay product. Everything stays within the bounds
+ * in the receiver's settings.
+ */
+public class LinkTuner {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LinkTuner.class);
+
+	/** weight given to each new sample */
+	public static final double SMOOTHING = 0.25;
+
+	/** round-trip time, as a multiple of the best seen, taken as congestion */
+	public static final double RTT_INFLATION = 2.0;
+
+	/** transfers smaller than this say little about throughput */
+	public static final int MIN_SAMPLE_BYTES = 4096;
+
+	private final NetRSSettings settings;
+	private final File stateFile;
+
+	private double rtt;
+	private double minRtt;
+	private double throughput;
+	private int bytesPerSecond;
+	private int windowSize;
+	private int segments;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param settings
+	 *            receiver settings, giving starting values and bounds
+	 * @param stateFile
+	 *            where to keep measurements between runs
+	 */
+	public LinkTuner(NetRSSettings settings, File stateFile) {
+		this.settings = settings;
+		this.stateFile = stateFile;
+
+		bytesPerSecond = settings.bytesPerSecond;
+		windowSize = settings.windowSize;
+		segments = 1;
+
+		load();
+	}
+
+	/**
+	 * Record a round-trip time.
+	 *
+	 * @param ms
+	 *            time to get a reply to a command that does no work
+	 */
+	public synchronized void recordRtt(long ms) {
+		if (ms <= 0)
+			ms = 1;
+
+		rtt = rtt == 0 ? ms : SMOOTHING * ms + (1 - SMOOTHING) * rtt;
+
+		// let the best time seen age, in case the route changes
+		minRtt = minRtt == 0 ? ms : Math.min(ms, minRtt * 1.01);
+		updateWindowSize();
+	}
+
+	/**
+	 * Record a completed transfer and retune.
+	 *
+	 * @param bytes
+	 *            bytes transferred
+	 * @param ms
+	 *            time taken
+	 */
+	public synchronized void recordTransfer(long bytes, long ms) {
+		if (bytes < MIN_SAMPLE_BYTES || ms <= 0)
+			return;
+
+		double sample = bytes * 1000.0 / ms;
+		throughput = throughput == 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * throughput;
+
+		boolean congested = minRtt > 0 && rtt > RTT_INFLATION * minRtt;
+		if (bytesPerSecond > 0) {
+			if (congested) {
+				bytesPerSecond = bytesPerSecond * 3 / 4;
+				segments--;
+			} else if (sample >= 0.9 * bytesPerSecond) {
+				bytesPerSecond += Math.max(1, bytesPerSecond / 8);
+			} else {
+				segments++;
+			}
+		} else if (congested) {
+			segments--;
+		}
+
+		if (bytesPerSecond > 0)
+			bytesPerSecond = clamp(bytesPerSecond, settings.minBytesPerSecond, settings.maxBytesPerSecond);
+		segments = clamp(segments, 1, Math.max(1, settings.segments));
+		updateWindowSize();
+
+		LOGGER.debug(settings.systemName + " link: rtt=" + (long) rtt + " ms, throughput=" + (long) throughput
+				+ " B/s. Tuned to " + bytesPerSecond + " B/s, " + windowSize + " byte window, " + segments
+				+ " segments.");
+		save();
+	}
+
+	/**
+	 * @return throttle rate in bytes per second, or a value less than one if
+	 *         transfers aren't throttled
+	 */
+	public synchronized int getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * @return receive buffer size in bytes, or a value less than one to leave
+	 *         it alone
+	 */
+	public synchronized int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * @return number of segments to fetch large files in
+	 */
+	public synchronized int getSegments() {
+		return segments;
+	}
+
+	/**
+	 * @return smoothed round-trip time in ms
+	 */
+	public synchronized long getRtt() {
+		return (long) rtt;
+	}
+
+	/**
+	 * @return smoothed throughput in bytes per second
+	 */
+	public synchronized long getThroughput() {
+		return (long) throughput;
+	}
+
+	/**
+	 * Size the receive buffer to hold what the link can carry in a round trip.
+	 */
+	private void updateWindowSize() {
+		if (rtt == 0)
+			return;
+
+		double rate = bytesPerSecond > 0 ? bytesPerSecond : throughput;
+		if (rate == 0)
+			return;
+
+		windowSize = clamp((int) (rate * rtt / 1000), settings.minWindowSize, settings.maxWindowSize);
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	private void load() {
+		if (!stateFile.exists())
+			return;
+
+		Properties state = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(stateFile);
+			state.load(in);
+
+			rtt = Double.parseDouble(state.getProperty("rtt", "0"));
+			minRtt = Double.parseDouble(state.getProperty("minRtt", "0"));
+			throughput = Double.parseDouble(state.getProperty("throughput", "0"));
+			if (bytesPerSecond > 0)
+				bytesPerSecond = clamp(Integer.parseInt(state.getProperty("bytesPerSecond", "" + bytesPerSecond)),
+						settings.minBytesPerSecond, settings.maxBytesPerSecond);
+			windowSize = clamp(Integer.parseInt(state.getProperty("windowSize", "" + windowSize)),
+					settings.minWindowSize, settings.maxWindowSize);
+			segments = clamp(Integer.parseInt(state.getProperty("segments", "" + segments)), 1,
+					Math.max(1, settings.segments));
+		} catch (IOException e) {
+			LOGGER.error("Couldn't read link state " + stateFile + ". " + e.getMessage());
+		} catch (NumberFormatException e) {
+			LOGGER.error("Ignoring corrupt link state " + stateFile + ". " + e.getMessage());
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+		}
+	}
+
+	private void save() {
+		Properties state = new Properties();
+		state.setProperty("rtt", "" + rtt);
+		state.setProperty("minRtt", "" + minRtt);
+		state.setProperty("throughput", "" + throughput);
+		state.setProperty("bytesPerSecond", "" + bytesPerSecond);
+		state.setProperty("windowSize", "" + windowSize);
+		state.setProperty("segments", "" + segments);
+
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(stateFile);
+			state.store(out, "Link measurements for " + settings.systemName);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't write link state " + stateFile + ". " + e.getMessage());
+		} finally {
+			if (out != null)
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+		}
+	}
+}
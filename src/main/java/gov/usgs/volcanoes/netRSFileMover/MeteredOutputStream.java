@@ -0,0 +1,58 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Count bytes on their way to another stream, noting when the first one
+ * arrives.
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+
+	private final long startTime;
+	private long firstByteTime;
+	private long count;
+
+	/**
+	 * Simple constructor. The time to first byte is measured from now.
+	 *
+	 * @param out
+	 *            stream to write to
+	 */
+	public MeteredOutputStream(OutputStream out) {
+		super(out);
+		startTime = System.currentTimeMillis();
+	}
+
+	public void write(int b) throws IOException {
+		count(1);
+		out.write(b);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		count(len);
+		out.write(b, off, len);
+	}
+
+	private void count(int len) {
+		if (count == 0 && len > 0)
+			firstByteTime = System.currentTimeMillis();
+		count += len;
+	}
+
+	/**
+	 * @return bytes written
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return ms from my creation to the first byte, or -1 if nothing has been
+	 *         written
+	 */
+	public long getTimeToFirstByte() {
+		return count == 0 ? -1 : firstByteTime - startTime;
+	}
+}
@@ -0,0 +1,235 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publish receiver metrics. Each receiver's metrics are registered as an
+ * MBean, and if given a file I periodically write them all to it in the
+ * Prometheus text format, suitable for node_exporter's textfile collector.
+ * The file is replaced atomically so it's never read half written.
+ */
+public class MetricsExporter {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetricsExporter.class);
+
+	/** JMX domain for my MBeans */
+	public static final String JMX_DOMAIN = "gov.usgs.volcanoes.netRSFileMover";
+
+	private final File metricsFile;
+	private final int interval;
+	private final List<TransferMetrics> metrics;
+	private ScheduledExecutorService timer;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param metricsFile
+	 *            where to write metrics, or null to only publish them over JMX
+	 * @param interval
+	 *            time between writes, in seconds
+	 */
+	public MetricsExporter(File metricsFile, int interval) {
+		this.metricsFile = metricsFile;
+		this.interval = Math.max(1, interval);
+		metrics = new CopyOnWriteArrayList<TransferMetrics>();
+	}
+
+	/**
+	 * Publish a receiver's metrics.
+	 *
+	 * @param receiverMetrics
+	 */
+	public void register(TransferMetrics receiverMetrics) {
+		metrics.add(receiverMetrics);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(JMX_DOMAIN + ":type=TransferMetrics,receiver="
+					+ ObjectName.quote(receiverMetrics.getReceiver()));
+			if (!server.isRegistered(name))
+				server.registerMBean(receiverMetrics, name);
+		} catch (JMException e) {
+			LOGGER.error("Couldn't register metrics for " + receiverMetrics.getReceiver() + ". " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Start writing the metrics file, if I have one.
+	 */
+	public synchronized void start() {
+		if (metricsFile == null || timer != null)
+			return;
+
+		LOGGER.debug("Writing metrics to " + metricsFile + " every " + interval + " s.");
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, 0, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stop writing the metrics file, writing it one last time.
+	 */
+	public synchronized void stop() {
+		if (timer == null)
+			return;
+
+		timer.shutdownNow();
+		timer = null;
+		write();
+	}
+
+	/**
+	 * @return all metrics in the Prometheus text format
+	 */
+	public String getText() {
+		PrometheusText text = new PrometheusText();
+		for (TransferMetrics receiverMetrics : metrics)
+			receiverMetrics.writeTo(text);
+		return text.toString();
+	}
+
+	private void write() {
+		File tmp = new File(metricsFile.getPath() + ".tmp");
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+			writer.write(getText());
+			writer.close();
+			writer = null;
+			Files.move(tmp.toPath(), metricsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't write metrics to " + metricsFile + ". " + e.getMessage());
+		} finally {
+			if (writer != null)
+				try {
+					writer.close();
+				} catch (IOException e) {
+				}
+		}
+	}
+
+	/**
+	 * Escape a Prometheus label value.
+	 *
+	 * @param value
+	 * @return value safe to put between double quotes
+	 */
+	public static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Accumulates samples in the Prometheus text format, grouped by metric so
+	 * each metric's HELP and TYPE lines appear once.
+	 */
+	public static class PrometheusText {
+		private final Map<String, StringBuilder> families = new LinkedHashMap<String, StringBuilder>();
+
+		/**
+		 * Add a counter sample.
+		 *
+		 * @param name
+		 * @param help
+		 * @param labels
+		 *            label pairs, without braces
+		 * @param value
+		 */
+		public void counter(String name, String help, String labels, double value) {
+			family(name, help, "counter").append(name).append('{').append(labels).append("} ")
+					.append(format(value)).append('\n');
+		}
+
+		/**
+		 * Add a gauge sample.
+		 *
+		 * @param name
+		 * @param help
+		 * @param labels
+		 *            label pairs, without braces
+		 * @param value
+		 */
+		public void gauge(String name, String help, String labels, double value) {
+			family(name, help, "gauge").append(name).append('{').append(labels).append("} ")
+					.append(format(value)).append('\n');
+		}
+
+		/**
+		 * Add a histogram.
+		 *
+		 * @param name
+		 * @param help
+		 * @param labels
+		 *            label pairs, without braces
+		 * @param histogram
+		 */
+		public void histogram(String name, String help, String labels, Histogram histogram) {
+			StringBuilder sb = family(name, help, "histogram");
+			double[] bounds = histogram.getBounds();
+			long[] counts = histogram.getCumulativeCounts();
+			for (int i = 0; i < counts.length; i++) {
+				String le = i < bounds.length ? format(bounds[i]) : "+Inf";
+				sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+						.append(counts[i]).append('\n');
+			}
+			sb.append(name).append("_sum{").append(labels).append("} ").append(format(histogram.getSum()))
+					.append('\n');
+			sb.append(name).append("_count{").append(labels).append("} ").append(counts[counts.length - 1])
+					.append('\n');
+		}
+
+		private StringBuilder family(String name, String help, String type) {
+			StringBuilder sb = families.get(name);
+			if (sb == null) {
+				sb = new StringBuilder();
+				sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+				sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+				families.put(name, sb);
+			}
+			return sb;
+		}
+
+		private static String format(double value) {
+			if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+				return Long.toString((long) value);
+			return Double.toString(value);
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (StringBuilder family : families.values())
+				sb.append(family);
+			return sb.toString();
+		}
+	}
+}
@@ -1,18 +1,33 @@
 package gov.usgs.volcanoes.netRSFileMover;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.channels.FileChannel;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPFileEntryParser;
+import org.apache.commons.net.ftp.FTPFileFilters;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.parser.DefaultFTPFileEntryParserFactory;
+import org.apache.commons.net.ftp.parser.ParserInitializationException;
+import org.apache.commons.net.ftp.parser.UnixFTPEntryParser;
 import org.apache.commons.net.io.CopyStreamEvent;
 import org.apache.commons.net.io.CopyStreamListener;
 import org.slf4j.Logger;
@@ -32,16 +47,42 @@ public class NetRSConnection {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(NetRSConnection.class);
 
+	/** checksum commands I understand, in order of preference */
+	private static final String[] CHECKSUM_COMMANDS = { "XCRC", "XMD5", "XSHA1", "XSHA256" };
+
+	/** digest algorithm computed by each checksum command */
+	private static final String[] CHECKSUM_ALGORITHMS = { BlockDigests.CRC32, "MD5", "SHA-1", "SHA-256" };
+
+	/** ways of listing a directory, tried in this order */
+	private static final String[] LIST_COMMANDS = { "MLSD", "LIST", "STAT" };
+
 	private final NetRSSettings settings;
-	private final SimpleDateFormat fileNameFormat;
+	private final FileNameFormat fileNameFormat;
 
 	private FTPClient ftp;
+	private long lastActivity;
+
+	private final RemoteDirectoryCache listingCache;
+	private final ArchiveIndex archiveIndex;
+	private final TransferJournal journal;
+	private final List<TokenBucket> rateLimits;
+	private final TokenBucket receiverRateLimit;
+	private final LinkTuner tuner;
+	private final ArchivePublisher publisher;
+	private final Executor publishExecutor;
+	private final ArchivePipeline pipeline;
+	private final Set<String> publishing;
+	private final CircuitBreaker breaker;
+	private final TransferMetrics metrics;
+	private String listCommand;
+	private FTPFileEntryParser statParser;
+	private String checksumCommand;
+	private boolean checksumRangesSupported;
 	
 	private TimeSpan timeSpan;
 
-	private long pollTime;
-	private long oldestPollTime;
 	private long quittingTime;
+	private boolean quitting;
 
 	/**
 	 * Simple constructor
@@ -49,216 +90,1239 @@ public class NetRSConnection {
 	 * @param settings
 	 */
 	public NetRSConnection(NetRSSettings settings) {
+		this(settings, null);
+	}
+
+	/**
+	 * Constructor for a receiver sharing a bandwidth budget with others at its
+	 * site.
+	 * 
+	 * @param settings
+	 * @param siteRateLimit
+	 *            bandwidth budget shared by the site, or null if there isn't
+	 *            one
+	 */
+	public NetRSConnection(NetRSSettings settings, TokenBucket siteRateLimit) {
+		this(settings, siteRateLimit, null);
+	}
+
+	/**
+	 * Constructor for a receiver whose files are compressed away from the
+	 * polling thread.
+	 * 
+	 * @param settings
+	 * @param siteRateLimit
+	 *            bandwidth budget shared by the site, or null if there isn't
+	 *            one
+	 * @param publishExecutor
+	 *            where to compress and publish files, or null to do it as
+	 *            they arrive
+	 */
+	public NetRSConnection(NetRSSettings settings, TokenBucket siteRateLimit, Executor publishExecutor) {
+		this(settings, siteRateLimit, publishExecutor, null);
+	}
+
+	/**
+	 * Constructor for a receiver whose archived files are handed on for
+	 * further processing.
+	 * 
+	 * @param settings
+	 * @param siteRateLimit
+	 *            bandwidth budget shared by the site, or null if there isn't
+	 *            one
+	 * @param publishExecutor
+	 *            where to compress and publish files, or null to do it as
+	 *            they arrive
+	 * @param pipeline
+	 *            where to hand archived files, or null if nothing is done
+	 *            with them
+	 */
+	public NetRSConnection(NetRSSettings settings, TokenBucket siteRateLimit, Executor publishExecutor,
+			ArchivePipeline pipeline) {
 
 		this.settings = settings;
-		timeSpan = settings.timeSpan;
+		this.publishExecutor = publishExecutor;
+		this.pipeline = pipeline;
+		publishing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 		long launchTime = System.currentTimeMillis();
 		quittingTime = launchTime + (settings.duration * ONE_MINUTE);
 
-		fileNameFormat = new SimpleDateFormat(settings.fileNameFormat);
-		fileNameFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		fileNameFormat = new FileNameFormat(settings.fileNameFormat);
 
-		// Find start of current file and backup one interval. Do not attempt to
-		// transfer the file that is currently being written.
-		
 		this.setTimeSpan(settings.timeSpan);
 
-		ftp = new FTPClient();
+		listingCache = new RemoteDirectoryCache(settings.listingCacheTTL * 1000L, settings.listingCacheSize);
+		listCommand = settings.listDirectories ? settings.listCommand : null;
+		checksumRangesSupported = true;
+
+		File indexFile = null;
+		if (settings.persistArchiveIndex)
+			indexFile = new File(settings.outputDir, settings.systemName + ".index");
+		archiveIndex = new ArchiveIndex(new File(settings.outputDir, settings.systemName), indexFile);
+		journal = new TransferJournal(new File(settings.outputDir, settings.systemName + ".journal"));
+
+		publisher = new ArchivePublisher(settings.fsync, settings.gzip, settings.compressionLevel);
+		breaker = new CircuitBreaker(settings.systemName, settings.breakerThreshold, settings.breakerCoolDown * 1000L);
+
+		if (settings.adaptiveTuning)
+			tuner = new LinkTuner(settings, new File(settings.outputDir, settings.systemName + ".link"));
+		else
+			tuner = null;
 
-		ftp.setConnectTimeout(settings.connectTimeout * 1000);
-		ftp.setStrictReplyParsing(settings.strictReplyParsing);
+		rateLimits = new ArrayList<TokenBucket>();
+		if (settings.bytesPerSecond > 0) {
+			receiverRateLimit = new TokenBucket(tuner == null ? settings.bytesPerSecond : tuner.getBytesPerSecond());
+			rateLimits.add(receiverRateLimit);
+		} else {
+			receiverRateLimit = null;
+		}
+		if (siteRateLimit != null)
+			rateLimits.add(siteRateLimit);
+
+		metrics = new TransferMetrics(settings.systemName, settings.site);
+		if (receiverRateLimit != null)
+			metrics.setThrottleBytesPerSecond(receiverRateLimit.getRate());
+
+		ftp = newClient();
 		if (settings.printHash)
 			ftp.setCopyStreamListener(getCopyStreamListener());
 	}
 
 	/**
-	 * Connect to NetRS, setting receive window if needed
+	 * Create an FTPClient configured for my receiver.
 	 * 
-	 * @throws IOException
+	 * @return an unconnected client
 	 */
-	private void connect() throws IOException {
+	private FTPClient newClient() {
+		FTPClient client = new FTPClient();
 
-		LOGGER.debug("Connecting to " + settings.address);
+		client.setConnectTimeout(settings.connectTimeout * 1000);
+		client.setStrictReplyParsing(settings.strictReplyParsing);
+		client.setControlKeepAliveTimeout(settings.keepAliveInterval);
+		client.setBufferSize(settings.bufferSize);
+
+		return client;
+	}
+
+	/**
+	 * Connect a client to my receiver and log in, setting receive window if
+	 * needed.
+	 * 
+	 * @param client
+	 * @throws IOException
+	 */
+	private void login(FTPClient client) throws IOException {
 		try {
 
-			ftp.connect(settings.address);
-			ftp.login(settings.userName, settings.password);
+			client.connect(settings.address, settings.port);
+			if (!client.login(settings.userName, settings.password))
+				throw new IOException("Login refused. Server replied: " + client.getReplyString());
 
 			if (settings.passiveFTP)
-				ftp.enterLocalPassiveMode();
+				client.enterLocalPassiveMode();
 			else
-				ftp.enterLocalActiveMode();
+				client.enterLocalActiveMode();
+
+			client.setFileType(FTP.BINARY_FILE_TYPE);
+
+			if (tuner != null) {
+				long start = System.currentTimeMillis();
+				client.sendNoOp();
+				tuner.recordRtt(System.currentTimeMillis() - start);
+			}
 
-			// Grrr... This is not guaranteed to work and I can find no way to
-			// tell if it did work. Best to sniff the wire to check. There must
-			// be a better way.
-			if (settings.windowSize > 0)
-				ftp.setReceiveBufferSize(settings.windowSize);
+			applyWindowSize(client);
 
 		} catch (IOException e) {
-			if (ftp.isConnected())
-				ftp.disconnect();
+			if (client.isConnected())
+				client.disconnect();
 
 			throw e;
 		}
 	}
 
 	/**
-	 * Poll the next file from the receiver, updating pollTime
+	 * Connect to NetRS, setting receive window if needed. An open session is
+	 * reused unless it has sat idle too long or no longer answers a NOOP.
 	 * 
 	 * @throws IOException
 	 */
-	public void poll() {
+	private void connect() throws IOException {
+
+		if (ftp.isConnected()) {
+			long idle = System.currentTimeMillis() - lastActivity;
+			if (idle < settings.idleTimeout * 1000L && (idle < settings.keepAliveInterval * 1000L || isAlive())) {
+				LOGGER.debug("Reusing connection to " + settings.address);
+				return;
+			}
+
+			LOGGER.debug("Connection to " + settings.address + " has gone stale after " + idle + " ms.");
+			disconnect();
+		}
+
+		LOGGER.debug("Connecting to " + settings.address);
+		long start = System.currentTimeMillis();
+		try {
+			login(ftp);
+		} catch (IOException e) {
+			metrics.recordConnect(System.currentTimeMillis() - start, false);
+			breaker.recordFailure();
+			throw e;
+		}
+		metrics.recordConnect(System.currentTimeMillis() - start, true);
+		breaker.recordSuccess();
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Set the receive buffer on the control connection and any data connections
+	 * opened after this.
+	 * 
+	 * @param client
+	 * @throws IOException
+	 */
+	private void applyWindowSize(FTPClient client) throws IOException {
+		int windowSize = tuner == null ? settings.windowSize : tuner.getWindowSize();
+		if (windowSize <= 0)
+			return;
+
+		// The OS may round or ignore this, so it's a request rather than a
+		// guarantee. Data sockets get their own setting; the control socket
+		// setting alone never reached the file transfers.
+		client.setReceiveBufferSize(windowSize);
+		client.setReceieveDataSocketBufferSize(windowSize);
+	}
+
+	/**
+	 * Check that the control channel is still up.
+	 * 
+	 * @return true if the server answered a NOOP
+	 */
+	private boolean isAlive() {
+		try {
+			long start = System.currentTimeMillis();
+			boolean alive = ftp.sendNoOp();
+			lastActivity = System.currentTimeMillis();
+			if (alive && tuner != null)
+				tuner.recordRtt(lastActivity - start);
+			return alive;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the breaker guarding connections to my receiver
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * @return my transfer metrics
+	 */
+	public TransferMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Close my connection to the receiver, if it's open.
+	 */
+	public void disconnect() {
+		if (ftp.isConnected())
+			try {
+				ftp.disconnect();
+			} catch (IOException e) {
+			}
+	}
+
+	/**
+	 * @return when the receiver may next be tried after repeated failures to
+	 *         connect, in ms, or 0 if it may be tried now
+	 */
+	public long getRetryTime() {
+		return breaker.getRetryTime();
+	}
+
+	/**
+	 * Poll the receiver for the file covering a single interval. The connection
+	 * is left open for the next poll.
+	 * 
+	 * @param interval
+	 *            start of the file's interval, in ms
+	 * @return what became of the file
+	 */
+	public PollResult poll(long interval) {
 
 		// Stop polling if I've been running too long.
 		if (System.currentTimeMillis() > quittingTime) {
-			pollTime = Long.MIN_VALUE;
-			LOGGER.info("I've been running too long. I'll stop");
-			return;
+			if (!quitting)
+				LOGGER.info("I've been running too long. I'll stop");
+			quitting = true;
+			return PollResult.SKIPPED;
 		}
 
-		String filename = fileNameFormat.format(new Date(pollTime));
+		String filename = format(interval);
 		LOGGER.info("Polling " + settings.systemName + " for " + filename);
 		LOGGER.debug(settings.toString());
-		pollTime -= settings.duration * ONE_MINUTE;
 
 		File outFile = new File(settings.outputDir + File.separator + settings.systemName + File.separator + filename);
 
 		// Just return if I already have the file
-		if (outFile.exists()) {
+		TransferJournal.Entry entry = journal.get(filename);
+		if (isArchived(filename, entry)) {
 			LOGGER.debug("I already have " + filename + " skipping it.");
-			return;
+			return PollResult.SKIPPED;
+		}
+
+		// or if I've recently found the receiver doesn't have it
+		if (entry != null && entry.status == TransferJournal.Status.MISSING
+				&& System.currentTimeMillis() - entry.time < settings.missingRecheckInterval * 1000L) {
+			LOGGER.debug(settings.systemName + " didn't have " + filename + " when last checked. Skipping it.");
+			return PollResult.SKIPPED;
+		}
+
+		// Don't waste a connect timeout on a receiver that's been down
+		if (!breaker.allowRequest()) {
+			LOGGER.debug(settings.systemName + " is unreachable. Putting off " + filename);
+			return PollResult.DEFERRED;
 		}
 
 		try {
 			connect();
 		} catch (IOException e) {
 			LOGGER.error("Could not connect to " + settings.systemName);
-			return;
+			return PollResult.UNREACHABLE;
 		}
 
-		getFile(filename, outFile);
+		// Don't ask for files the receiver doesn't have. A listing from before
+		// the file closed may not show it, or show it incomplete.
+		int split = filename.lastIndexOf('/');
+		Map<String, FTPFile> listing = listDirectory(filename.substring(0, split),
+				interval + settings.duration * (long) ONE_MINUTE);
+		FTPFile remoteFile = null;
+		if (listing != null) {
+			remoteFile = listing.get(filename.substring(split + 1));
+			if (remoteFile == null) {
+				LOGGER.info(settings.systemName + " doesn't have " + filename + " skipping it.");
+				journal.missing(filename);
+				return PollResult.MISSING;
+			}
+		}
 
-		if (settings.depthFirst && !polledLast())
-			poll();
+		return getFile(filename, remoteFile, outFile);
+	}
 
-		if (ftp.isConnected())
+	/**
+	 * Fetch whatever the receiver has added to the file it's recording since I
+	 * last looked. New bytes are appended to the file's partial download, so
+	 * once the interval closes the next poll need only fetch the rest before
+	 * verifying and archiving it. A file the receiver hasn't started isn't
+	 * recorded as missing.
+	 * 
+	 * @param interval
+	 *            start of the interval being recorded, in ms
+	 * @return TAILED if I got anything new
+	 */
+	public PollResult tail(long interval) {
+		String filename = format(interval);
+		if (!settings.resumeTransfer || isArchived(filename, journal.get(filename)) || !breaker.allowRequest())
+			return PollResult.SKIPPED;
+
+		try {
+			connect();
+		} catch (IOException e) {
+			LOGGER.error("Could not connect to " + settings.systemName);
+			return PollResult.UNREACHABLE;
+		}
+
+		File tmpFile = new File(settings.tmpDir, filename.substring(filename.lastIndexOf('/') + 1));
+		tmpFile.getParentFile().mkdirs();
+
+		TransferJournal.Entry entry = journal.get(filename);
+		long offset = 0;
+		if (entry != null && (entry.status == TransferJournal.Status.TAILING
+				|| entry.status == TransferJournal.Status.PARTIAL))
+			offset = Math.min(entry.offset, tmpFile.length());
+		if (tmpFile.length() > offset)
+			truncate(tmpFile, offset);
+
+		// One SIZE is cheaper than a data connection with nothing to carry
+		long size = getRemoteSize(filename, null);
+		if (size < 0)
+			return PollResult.SKIPPED;
+
+		if (size < offset) {
+			LOGGER.info(filename + " has shrunk since I last looked. Starting over.");
+			truncate(tmpFile, 0);
+			offset = 0;
+		}
+
+		if (size == offset)
+			return PollResult.SKIPPED;
+
+		boolean result;
+		try {
+			result = retrieve(filename, tmpFile, null);
+		} catch (FileNotFoundException e) {
+			LOGGER.error("Can't create temp file " + tmpFile);
+			return PollResult.FAILED;
+		}
+		lastActivity = System.currentTimeMillis();
+
+		if (tmpFile.length() > offset)
+			journal.tailing(filename, tmpFile.length());
+
+		if (!result) {
+			LOGGER.info("Couldn't tail " + filename + ". Server replied: " + ftp.getReplyString());
+			return PollResult.FAILED;
+		}
+
+		LOGGER.debug("Tailed " + filename + " to " + tmpFile.length() + " bytes.");
+		return PollResult.TAILED;
+	}
+
+	/**
+	 * Find the intervals in my time span which are missing from the archive,
+	 * and ask the receiver which of them it has. Each remote directory holding
+	 * a gap is listed once, rather than probing for each file. What I learn is
+	 * kept in the journal and the connection is left open for polling the gaps.
+	 *
+	 * @return the gaps
+	 */
+	public GapReport reconcile() {
+		long[] intervals = getIntervals();
+		GapReport report = new GapReport(settings.systemName, settings.duration * (long) ONE_MINUTE,
+				intervals.length);
+
+		List<Long> gaps = new ArrayList<Long>();
+		List<String> names = new ArrayList<String>();
+		Set<String> directories = new LinkedHashSet<String>();
+		for (long interval : intervals) {
+			String filename = format(interval);
+			if (isArchived(filename, journal.get(filename)))
+				continue;
+
+			gaps.add(interval);
+			names.add(filename);
+			directories.add(filename.substring(0, filename.lastIndexOf('/')));
+		}
+
+		Set<String> listed = new HashSet<String>();
+		Set<Long> remote = new HashSet<Long>();
+		if (!gaps.isEmpty() && listCommand != null && breaker.allowRequest()) {
 			try {
-				ftp.disconnect();
+				connect();
+				for (String directory : directories) {
+					Map<String, FTPFile> listing = listDirectory(directory, 0);
+					if (listing == null) {
+						if (listCommand == null)
+							break;
+						continue;
+					}
+
+					listed.add(directory);
+					for (String name : listing.keySet()) {
+						long interval = fileNameFormat.parse(directory + "/" + name);
+						if (interval != FileNameFormat.NO_MATCH)
+							remote.add(interval);
+					}
+				}
 			} catch (IOException e) {
+				LOGGER.error("Could not connect to " + settings.systemName);
+			}
+		}
+
+		for (int i = 0; i < gaps.size(); i++) {
+			long interval = gaps.get(i);
+			String filename = names.get(i);
+			TransferJournal.Entry entry = journal.get(filename);
+
+			if (!listed.contains(filename.substring(0, filename.lastIndexOf('/')))) {
+				report.add(interval, GapReport.Availability.UNKNOWN);
+			} else if (remote.contains(interval)) {
+				report.add(interval, GapReport.Availability.AVAILABLE);
+				// an old MISSING entry would stop me polling for it
+				if (entry != null && entry.status == TransferJournal.Status.MISSING)
+					journal.available(filename);
+			} else {
+				report.add(interval, GapReport.Availability.ABSENT);
+				if (entry == null || entry.status != TransferJournal.Status.MISSING)
+					journal.missing(filename);
 			}
+		}
+
+		return report;
 	}
 
 	/**
-	 * Pull a single file from the receiver
+	 * Decide if a file is already in the archive.
+	 *
+	 * @param filename
+	 *            remote file name
+	 * @param entry
+	 *            the file's journal entry, or null
+	 * @return true if I have the file
+	 */
+	private boolean isArchived(String filename, TransferJournal.Entry entry) {
+		return (entry != null && entry.status == TransferJournal.Status.ARCHIVED) || archiveIndex.contains(filename)
+				|| publishing.contains(filename);
+	}
+
+	/**
+	 * List a remote directory, using a cached listing if I have a recent enough
+	 * one. Each listing costs a single exchange, however many files it holds.
+	 * I prefer MLSD, which gives exact sizes and times. If the receiver won't
+	 * answer it, or I can't understand the answer, I fall back to LIST, then
+	 * STAT, then asking for each file.
+	 * 
+	 * @param directory
+	 *            remote directory
+	 * @param notBefore
+	 *            earliest time a cached listing may have been taken, in ms
+	 * @return files in the directory keyed by name, or null if the receiver
+	 *         can't tell me
+	 */
+	private Map<String, FTPFile> listDirectory(String directory, long notBefore) {
+		Map<String, FTPFile> files = listingCache.get(directory, notBefore);
+		if (files != null)
+			return files;
+
+		try {
+			if ("AUTO".equals(listCommand)) {
+				listCommand = ftp.hasFeature("MLST") ? "MLSD" : "LIST";
+				LOGGER.debug(settings.systemName + " list command: " + listCommand);
+			}
+
+			while (listCommand != null) {
+				FTPFile[] listing = list(directory);
+				lastActivity = System.currentTimeMillis();
+				int reply = ftp.getReplyCode();
+
+				if (FTPReply.isPositiveCompletion(reply)) {
+					if (listing == null) {
+						fallBack("I can't understand " + listCommand + " listings from " + settings.systemName + ".");
+						continue;
+					}
+
+					// A STAT reply without a listing may just mean the server won't say
+					if (listing.length == 0 && "STAT".equals(listCommand))
+						return null;
+
+					return listingCache.put(directory, listing);
+				}
+
+				if (reply == FTPReply.FILE_UNAVAILABLE)
+					return listingCache.put(directory, new FTPFile[0]);
+
+				if (!FTPReply.isNegativePermanent(reply))
+					return null;
+
+				fallBack(settings.systemName + " won't answer " + listCommand + ". Server replied: "
+						+ ftp.getReplyString().trim());
+			}
+		} catch (IOException e) {
+			LOGGER.debug("Couldn't list " + directory + ". " + e.getMessage());
+		}
+
+		return null;
+	}
+
+	/**
+	 * List a directory with my current list command.
+	 * 
+	 * @return the listing, or null if I couldn't understand it
+	 */
+	private FTPFile[] list(String directory) throws IOException {
+		FTPFile[] listing;
+		if ("MLSD".equals(listCommand))
+			listing = ftp.mlistDir(directory, FTPFileFilters.ALL);
+		else if ("LIST".equals(listCommand))
+			listing = ftp.initiateListParsing(directory).getFiles(FTPFileFilters.ALL);
+		else
+			return statDirectory(directory);
+
+		for (FTPFile file : listing)
+			if (file == null)
+				return null;
+
+		return listing;
+	}
+
+	/**
+	 * List a directory in the reply to STAT. It comes over the control
+	 * connection, saving the data connection a LIST would open.
+	 * 
+	 * @return the listing, or null if I couldn't understand it
+	 */
+	private FTPFile[] statDirectory(String directory) throws IOException {
+		String status = ftp.getStatus(directory);
+		if (status == null)
+			return new FTPFile[0];
+
+		if (statParser == null) {
+			try {
+				statParser = new DefaultFTPFileEntryParserFactory().createFileEntryParser(ftp.getSystemType());
+			} catch (IOException e) {
+				statParser = new UnixFTPEntryParser();
+			} catch (ParserInitializationException e) {
+				statParser = new UnixFTPEntryParser();
+			}
+		}
+
+		// The first and last lines carry the reply code.
+		String[] lines = status.split("\r?\n");
+		List<FTPFile> listing = new ArrayList<FTPFile>();
+		for (int i = 1; i < lines.length - 1; i++) {
+			String line = lines[i].trim();
+			if (line.length() == 0 || line.startsWith("total "))
+				continue;
+
+			FTPFile file = statParser.parseFTPEntry(line);
+			if (file == null)
+				return null;
+			listing.add(file);
+		}
+
+		return listing.toArray(new FTPFile[listing.size()]);
+	}
+
+	/**
+	 * Give up on my current list command and try the next.
+	 * 
+	 * @param reason
+	 */
+	private void fallBack(String reason) {
+		int i = Arrays.asList(LIST_COMMANDS).indexOf(listCommand);
+		listCommand = i + 1 < LIST_COMMANDS.length ? LIST_COMMANDS[i + 1] : null;
+		LOGGER.info(reason + (listCommand == null ? " I'll ask for each file." : " I'll try " + listCommand + "."));
+	}
+
+	/**
+	 * Find the size of a remote file, from its directory listing if I have one.
 	 * 
 	 * @param remoteFile
+	 * @param listed
+	 *            the file's directory entry, or null
+	 * @return size in bytes, or -1 if unknown
+	 */
+	private long getRemoteSize(String remoteFile, FTPFile listed) {
+		if (listed != null && listed.getSize() >= 0)
+			return listed.getSize();
+
+		try {
+			if (ftp.sendCommand("SIZE", remoteFile) == FTPReply.FILE_STATUS)
+				return Long.parseLong(ftp.getReplyString().substring(4).trim());
+		} catch (IOException e) {
+			LOGGER.debug("Couldn't get size of " + remoteFile + ". " + e.getMessage());
+		} catch (NumberFormatException e) {
+			LOGGER.debug("Couldn't understand size of " + remoteFile + ". " + ftp.getReplyString());
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Pull a single file from the receiver. Large files may be fetched in
+	 * several segments at once. If the control channel drops during the
+	 * transfer I'll reconnect and resume.
+	 * 
+	 * @param remoteFile
+	 * @param listed
+	 *            the file's directory entry, or null if I don't have one
 	 * @param localFile
-	 * @return true if file was retrieved
-	 * @throws IOException
+	 * @return what became of the file
 	 */
-	private void getFile(String remoteFile, File outFile) {
+	private PollResult getFile(String remoteFile, FTPFile listed, File outFile) {
 
 		// download to a temp file to help avoid exposing partial files
-		File tmpFile = new File(settings.outputDir + File.separator + "tmp" + File.separator + outFile.getName());
+		File tmpFile = new File(settings.tmpDir, outFile.getName());
 		tmpFile.getParentFile().mkdirs();
 
-		OutputStream output;
-		long resumeOffset = tmpFile.length();
-		boolean resume = settings.resumeTransfer && resumeOffset > 0;
-		try {
-			output = new FileOutputStream(tmpFile, resume);
-		} catch (FileNotFoundException e) {
-			LOGGER.error("Can't create temp file " + tmpFile);
-			return;
+		// Only trust as much of a partial download as I've recorded
+		TransferJournal.Entry entry = journal.get(remoteFile);
+		boolean tailed = entry != null && entry.status == TransferJournal.Status.TAILING;
+		if (entry != null && (entry.status == TransferJournal.Status.PARTIAL || tailed)
+				&& tmpFile.length() > entry.offset) {
+			LOGGER.info("Discarding unverified bytes of " + tmpFile + " after " + entry.offset);
+			truncate(tmpFile, entry.offset);
 		}
 
-		if (settings.bytesPerSecond > 0)
-			output = new ThrottledOutputStream(output, settings.bytesPerSecond);
+		// A file fetched as it was recorded may have grown since it was listed,
+		// so ask for its size now
+		if (tailed) {
+			long remoteSize = getRemoteSize(remoteFile, null);
+			listed = null;
+			if (remoteSize >= 0) {
+				listed = new FTPFile();
+				listed.setName(remoteFile.substring(remoteFile.lastIndexOf('/') + 1));
+				listed.setSize(remoteSize);
+			}
+		}
 
-		long now = System.currentTimeMillis();
+		// Plan the transfer from the listing, rather than asking about the file
+		long size = listed == null ? -1 : listed.getSize();
+		if (size >= 0 && tmpFile.length() > size) {
+			LOGGER.info(tmpFile + " is longer than " + remoteFile + ". Starting over.");
+			truncate(tmpFile, 0);
+		}
 
-		if (resume) {
-			LOGGER.info("resuming transfer at " + resumeOffset + " bytes.");
-			ftp.setRestartOffset(resumeOffset);
+		// and only if the receiver's file hasn't changed since, unless it was
+		// fetched as it was being recorded
+		BlockDigests digests = null;
+		if (settings.verifyTransfers) {
+			if (!tailed && tmpFile.length() > 0 && getRemoteTime(remoteFile, listed) > tmpFile.lastModified()) {
+				LOGGER.info(remoteFile + " has changed since it was partly downloaded. Starting over.");
+				truncate(tmpFile, 0);
+			}
+
+			String command = getChecksumCommand();
+			if (command != null)
+				digests = new BlockDigests(getChecksumAlgorithm(command), settings.verifyBlockSize);
 		}
-		boolean result = false;
-		try {
-			ftp.setFileType(FTP.BINARY_FILE_TYPE);
-			result = ftp.retrieveFile(remoteFile, output);
-		} catch (IOException e) {
-			LOGGER.error("Couldn't retrieve " + remoteFile);
-			e.printStackTrace();
+
+		long now = System.currentTimeMillis();
+		long startLength = tmpFile.length();
+		int segments = tuner == null ? settings.segments : tuner.getSegments();
+		if (tuner != null)
+			try {
+				applyWindowSize(ftp);
+			} catch (IOException e) {
+				LOGGER.debug("Couldn't set window size. " + e.getMessage());
+			}
+
+		// a download interrupted before it was archived may already be whole
+		boolean result = size > 0 && startLength == size;
+		if (result)
+			LOGGER.info("Already have all " + size + " bytes of " + remoteFile + ".");
+
+		if (!result && segments > 1 && startLength == 0) {
+			size = getRemoteSize(remoteFile, listed);
+			if (size >= settings.minSegmentSize) {
+				result = newSegmentedDownload().retrieve(remoteFile, size, segments, tmpFile, digests);
+			}
 		}
 
-		if (output != null)
+		int attempt = 0;
+		while (!result) {
+			try {
+				result = retrieve(remoteFile, tmpFile, digests);
+			} catch (FileNotFoundException e) {
+				LOGGER.error("Can't create temp file " + tmpFile);
+				return PollResult.FAILED;
+			}
+			lastActivity = System.currentTimeMillis();
+
+			if (result || attempt++ >= settings.reconnectAttempts || isAlive())
+				break;
+
+			LOGGER.info("Lost connection to " + settings.systemName + ". Reconnecting.");
+			metrics.recordRetry();
 			try {
-				output.close();
+				disconnect();
+				connect();
 			} catch (IOException e) {
+				LOGGER.error("Could not reconnect to " + settings.systemName);
+				break;
 			}
+		}
 
 		if (result && tmpFile.length() > 0) {
 			if (settings.printHash)
 				System.out.println();
-			LOGGER.debug("got file in " + (System.currentTimeMillis() - now) + " ms");
+			long elapsed = System.currentTimeMillis() - now;
+			LOGGER.debug("got file in " + elapsed + " ms");
+			metrics.recordTransfer(tmpFile.length() - startLength, elapsed);
 
-			try {
-				moveFile(tmpFile, outFile);
-			} catch (IOException e) {
-				LOGGER.error("Couldn't write file to " + outFile.getAbsolutePath() + ". " + e.getMessage());
+			if (tuner != null) {
+				tuner.recordTransfer(tmpFile.length() - startLength, elapsed);
+				if (receiverRateLimit != null) {
+					receiverRateLimit.setRate(tuner.getBytesPerSecond());
+					metrics.setThrottleBytesPerSecond(tuner.getBytesPerSecond());
+				}
+			}
+
+			if (settings.verifyTransfers && !verify(remoteFile, listed, tmpFile, digests)) {
+				metrics.recordVerifyFailure();
+				journal.failed(remoteFile, tmpFile.length());
+				return PollResult.FAILED;
+			}
+
+			// Compressing may take a while. Let it happen while I move on.
+			if (settings.gzip && publishExecutor != null) {
+				publishLater(remoteFile, tmpFile, outFile);
+				return PollResult.ARCHIVED;
 			}
+
+			return publish(remoteFile, tmpFile, outFile) ? PollResult.ARCHIVED : PollResult.FAILED;
 		} else {
-			tmpFile.delete();
+			// keep partial files around to resume later
+			if (!settings.resumeTransfer || tmpFile.length() == 0)
+				tmpFile.delete();
+
 			if (result) {
 				LOGGER.info("Server report sucessful download of zero-length file. That can't be good.");
 			} else {
 				LOGGER.info("Couldn't get file. Server replied: " + ftp.getReplyString());
 				LOGGER.info("Undeterred I will continue.");
 			}
+
+			if (!result && ftp.getReplyCode() == FTPReply.FILE_UNAVAILABLE) {
+				journal.missing(remoteFile);
+				return PollResult.MISSING;
+			}
+
+			journal.failed(remoteFile, tmpFile.length());
+			return PollResult.FAILED;
 		}
 	}
 
 	/**
-	 * copy and remove file. More robust than using .copyTo()
+	 * Move a complete download into the archive.
 	 * 
-	 * @param sourceFile
-	 * @param destFile
-	 * @throws IOException
+	 * @param remoteFile
+	 * @param tmpFile
+	 * @param outFile
+	 *            location in the archive, before any compression suffix
+	 * @return true if the file was archived
 	 */
-	private void moveFile(File sourceFile, File destFile) throws IOException {
-		File p = destFile.getParentFile();
-		if (!p.exists())
-			p.mkdirs();
+	private boolean publish(String remoteFile, File tmpFile, File outFile) {
+		File archiveFile = new File(outFile.getParentFile(), publisher.getArchiveName(outFile.getName()));
+		try {
+			publisher.publish(tmpFile, archiveFile);
+			archiveIndex.add(publisher.getArchiveName(remoteFile));
+			journal.archived(remoteFile);
+			if (pipeline != null)
+				pipeline.archived(settings.systemName, archiveFile);
+			return true;
+		} catch (IOException e) {
+			LOGGER.error("Couldn't write file to " + archiveFile.getAbsolutePath() + ". " + e.getMessage());
+			// the download is good, so don't fetch it again
+			journal.failed(remoteFile, tmpFile.length());
+			return false;
+		}
+	}
 
-		if (!destFile.exists())
-			destFile.createNewFile();
+	/**
+	 * Publish a download on my executor. Until it's done the file counts as
+	 * archived, so it isn't fetched again.
+	 */
+	private void publishLater(final String remoteFile, final File tmpFile, final File outFile) {
+		publishing.add(remoteFile);
+		try {
+			publishExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						publish(remoteFile, tmpFile, outFile);
+					} finally {
+						publishing.remove(remoteFile);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			publishing.remove(remoteFile);
+			publish(remoteFile, tmpFile, outFile);
+		}
+	}
 
-		FileChannel source = null;
-		FileChannel dest = null;
+	/**
+	 * Check a downloaded file against the receiver's idea of its size and, if
+	 * the receiver offers one, its checksum. Blocks which don't match are
+	 * fetched again. A file which still doesn't check out is cut back to the
+	 * bytes known to be good, to be resumed later.
+	 *
+	 * @param remoteFile
+	 * @param listed
+	 *            the file's directory entry, or null
+	 * @param tmpFile
+	 * @param digests
+	 *            digests of the temp file, or null if I can't ask for a
+	 *            checksum
+	 * @return true if the file may be archived
+	 */
+	private boolean verify(String remoteFile, FTPFile listed, File tmpFile, BlockDigests digests) {
+		long length = tmpFile.length();
+		long size = getRemoteSize(remoteFile, listed);
+		if (size >= 0 && length != size) {
+			LOGGER.info("Got " + length + " bytes of " + remoteFile + " but " + settings.systemName + " has " + size
+					+ ".");
+			if (length > size)
+				truncate(tmpFile, 0);
+			return false;
+		}
+
+		if (digests == null || getChecksumCommand() == null)
+			return true;
 
 		try {
-			source = new FileInputStream(sourceFile).getChannel();
-			dest = new FileOutputStream(destFile).getChannel();
-			dest.transferFrom(source, 0, source.size());
+			// bytes may have been counted which never reached the disk
+			if (digests.getLength() >= 0)
+				digests.sync(tmpFile);
+			digests.finish(length);
+
+			int blockSize = digests.getBlockSize();
+			int blockCount = (int) ((length + blockSize - 1) / blockSize);
+			String[] remoteBlocks = new String[blockCount];
+
+			// A segmented download has no digest of the whole file. Check it
+			// a block at a time, or failing that read it back.
+			byte[] whole = digests.getWhole();
+			if (whole == null) {
+				remoteBlocks[0] = remoteChecksum(remoteFile, 0, Math.min(length, blockSize));
+				if (getChecksumCommand() == null)
+					return true;
+				if (remoteBlocks[0] == null && !checksumRangesSupported) {
+					digests.reset();
+					digests.sync(tmpFile);
+					digests.finish(length);
+					whole = digests.getWhole();
+				}
+			}
+
+			if (whole != null) {
+				String remote = remoteChecksum(remoteFile, -1, -1);
+				if (remote == null || matches(remote, whole))
+					return true;
+
+				LOGGER.info(remoteFile + " doesn't match its checksum. Looking for damaged blocks.");
+				if (!checksumRangesSupported) {
+					truncate(tmpFile, 0);
+					return false;
+				}
+			}
+
+			for (int block = 0; block < blockCount; block++) {
+				if (remoteBlocks[block] == null)
+					remoteBlocks[block] = remoteChecksum(remoteFile, (long) block * blockSize,
+							Math.min(length, (long) (block + 1) * blockSize));
+				if (getChecksumCommand() == null)
+					return true;
+				if (remoteBlocks[block] == null) {
+					LOGGER.info("Couldn't get checksums of " + remoteFile + " a block at a time. Starting over.");
+					truncate(tmpFile, 0);
+					return false;
+				}
+			}
+
+			List<Integer> damaged = findDamaged(digests, remoteBlocks);
+			for (int attempt = 0; attempt < settings.verifyAttempts && !damaged.isEmpty(); attempt++) {
+				LOGGER.info("Fetching " + damaged.size() + " damaged blocks of " + remoteFile + " again.");
+				repair(remoteFile, length, tmpFile, digests, damaged);
+				damaged = findDamaged(digests, remoteBlocks);
+			}
+
+			if (damaged.isEmpty())
+				return true;
+
+			LOGGER.info("Couldn't repair " + remoteFile + ". Keeping the bytes before block " + damaged.get(0) + ".");
+			truncate(tmpFile, (long) damaged.get(0) * blockSize);
+			return false;
+
+		} catch (IOException e) {
+			LOGGER.error("Couldn't verify " + tmpFile + ". " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Compare my digests of each block with the receiver's.
+	 *
+	 * @return blocks which don't match, in order
+	 */
+	private static List<Integer> findDamaged(BlockDigests digests, String[] remoteBlocks) {
+		List<Integer> damaged = new ArrayList<Integer>();
+		for (int block = 0; block < remoteBlocks.length; block++) {
+			byte[] local = digests.getBlock(block);
+			if (local == null || !matches(remoteBlocks[block], local))
+				damaged.add(block);
+		}
+		return damaged;
+	}
+
+	/**
+	 * Fetch damaged blocks again, as runs of consecutive blocks.
+	 */
+	private void repair(String remoteFile, long length, File tmpFile, BlockDigests digests, List<Integer> damaged) {
+		int blockSize = digests.getBlockSize();
+		List<long[]> ranges = new ArrayList<long[]>();
+		for (int block : damaged) {
+			digests.resetBlock(block);
+			long start = (long) block * blockSize;
+			long end = Math.min(length, start + blockSize);
+			long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+			if (last != null && last[1] == start)
+				last[1] = end;
+			else
+				ranges.add(new long[] { start, end });
+		}
+
+		long[] starts = new long[ranges.size()];
+		long[] ends = new long[ranges.size()];
+		long bytes = 0;
+		for (int i = 0; i < starts.length; i++) {
+			starts[i] = ranges.get(i)[0];
+			ends[i] = ranges.get(i)[1];
+			bytes += ends[i] - starts[i];
+		}
+
+		int threads = Math.max(1, tuner == null ? settings.segments : tuner.getSegments());
+		newSegmentedDownload().repair(remoteFile, length, starts, ends, threads, tmpFile, digests);
+		digests.finish(length);
+		metrics.recordRepair(bytes);
+	}
+
+	/**
+	 * Compare a checksum from the receiver with one of mine. Leading zeros
+	 * and case are ignored, since servers differ.
+	 */
+	private static boolean matches(String remote, byte[] local) {
+		return stripZeros(remote.toLowerCase()).equals(stripZeros(BlockDigests.toHex(local)));
+	}
+
+	private static String stripZeros(String hex) {
+		int i = 0;
+		while (i < hex.length() - 1 && hex.charAt(i) == '0')
+			i++;
+		return hex.substring(i);
+	}
+
+	/**
+	 * Find out which checksum command my receiver offers, asking it the first
+	 * time I'm connected.
+	 *
+	 * @return the command, or null if there isn't one
+	 */
+	private String getChecksumCommand() {
+		if (checksumCommand == null) {
+			if ("none".equalsIgnoreCase(settings.checksumCommand)) {
+				checksumCommand = "";
+			} else if (!"auto".equalsIgnoreCase(settings.checksumCommand)) {
+				checksumCommand = settings.checksumCommand.toUpperCase();
+			} else {
+				try {
+					checksumCommand = "";
+					for (String command : CHECKSUM_COMMANDS)
+						if (ftp.hasFeature(command)) {
+							checksumCommand = command;
+							break;
+						}
+				} catch (IOException e) {
+					LOGGER.debug("Couldn't ask " + settings.systemName + " for its features. " + e.getMessage());
+					checksumCommand = null;
+					return null;
+				}
+			}
+			LOGGER.debug(settings.systemName + " checksum command: " + checksumCommand);
+		}
+
+		return checksumCommand.length() == 0 ? null : checksumCommand;
+	}
+
+	private static String getChecksumAlgorithm(String command) {
+		for (int i = 0; i < CHECKSUM_COMMANDS.length; i++)
+			if (CHECKSUM_COMMANDS[i].equals(command))
+				return CHECKSUM_ALGORITHMS[i];
+
+		throw new IllegalArgumentException("I don't know what " + command + " computes.");
+	}
+
+	/**
+	 * Ask the receiver for the checksum of a file, or of a range of it.
+	 *
+	 * @param remoteFile
+	 * @param start
+	 *            start of the range, or -1 for the whole file
+	 * @param end
+	 *            end of the range, exclusive
+	 * @return checksum in hex, or null if the receiver couldn't say
+	 */
+	private String remoteChecksum(String remoteFile, long start, long end) {
+		String command = getChecksumCommand();
+		if (command == null || (start >= 0 && !checksumRangesSupported))
+			return null;
+
+		try {
+			String args = start < 0 ? remoteFile : remoteFile + " " + start + " " + end;
+			int reply = ftp.sendCommand(command, args);
+			lastActivity = System.currentTimeMillis();
+			if (FTPReply.isPositiveCompletion(reply)) {
+				String[] words = ftp.getReplyString().trim().split("\\s+");
+				String checksum = words[words.length - 1].replace("\"", "");
+				if (checksum.startsWith("0x") || checksum.startsWith("0X"))
+					checksum = checksum.substring(2);
+				return checksum;
+			}
+
+			if (reply == FTPReply.UNRECOGNIZED_COMMAND || reply == FTPReply.COMMAND_NOT_IMPLEMENTED) {
+				LOGGER.info(settings.systemName + " doesn't understand " + command + ". I'll only check sizes.");
+				checksumCommand = "";
+			} else if (start >= 0 && (reply == FTPReply.SYNTAX_ERROR_IN_ARGUMENTS
+					|| reply == FTPReply.COMMAND_NOT_IMPLEMENTED_FOR_PARAMETER)) {
+				LOGGER.info(settings.systemName + " won't give " + command + " for part of a file.");
+				checksumRangesSupported = false;
+			}
+		} catch (IOException e) {
+			LOGGER.debug("Couldn't get checksum of " + remoteFile + ". " + e.getMessage());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Find when a remote file was last changed, from its directory listing if
+	 * that came from MLSD. Other listings may give only the minute or day.
+	 *
+	 * @param remoteFile
+	 * @param listed
+	 *            the file's directory entry, or null
+	 * @return time in ms, or -1 if the receiver won't say
+	 */
+	private long getRemoteTime(String remoteFile, FTPFile listed) {
+		if (listed != null && listed.getTimestamp() != null && listed.getRawListing() != null
+				&& listed.getRawListing().toLowerCase().contains("modify="))
+			return listed.getTimestamp().getTimeInMillis();
+
+		try {
+			FTPFile file = ftp.mdtmFile(remoteFile);
+			lastActivity = System.currentTimeMillis();
+			if (file != null && file.getTimestamp() != null)
+				return file.getTimestamp().getTimeInMillis();
+		} catch (IOException e) {
+			LOGGER.debug("Couldn't get time of " + remoteFile + ". " + e.getMessage());
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return a source of parallel range transfers from my receiver
+	 */
+	private SegmentedDownload newSegmentedDownload() {
+		return new SegmentedDownload(new SegmentedDownload.SessionFactory() {
+			public FTPClient open() throws IOException {
+				FTPClient client = newClient();
+				login(client);
+				return client;
+			}
+		}, rateLimits, settings.bufferSize, metrics, settings.threadModel);
+	}
+
+	/**
+	 * Cut a file short.
+	 * 
+	 * @param file
+	 * @param length
+	 *            new length in bytes
+	 */
+	private static void truncate(File file, long length) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(length);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't truncate " + file + ". " + e.getMessage());
 		} finally {
-			if (source != null)
-				source.close();
+			if (raf != null)
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+		}
+	}
+
+	/**
+	 * Make a single attempt to retrieve a file, resuming from whatever is
+	 * already in the temp file.
+	 * 
+	 * @param remoteFile
+	 * @param tmpFile
+	 * @param digests
+	 *            digests of the temp file to keep up to date, or null
+	 * @return true if the server reported a complete transfer
+	 * @throws FileNotFoundException
+	 *             if the temp file cannot be written
+	 */
+	private boolean retrieve(String remoteFile, File tmpFile, BlockDigests digests) throws FileNotFoundException {
+		long resumeOffset = tmpFile.length();
+		boolean resume = settings.resumeTransfer && resumeOffset > 0;
+
+		if (digests != null) {
+			try {
+				if (resume)
+					digests.sync(tmpFile);
+				else
+					digests.reset();
+			} catch (IOException e) {
+				LOGGER.error("Couldn't read " + tmpFile + ". " + e.getMessage());
+				return false;
+			}
+		}
 
-			if (dest != null)
-				dest.close();
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(tmpFile, resume), settings.bufferSize);
+
+		ThrottledOutputStream throttle = null;
+		if (!rateLimits.isEmpty())
+			output = throttle = new ThrottledOutputStream(output, rateLimits);
+
+		if (digests != null)
+			output = new DigestingOutputStream(output, digests, resume ? resumeOffset : 0);
+
+		if (resume) {
+			LOGGER.info("resuming transfer at " + resumeOffset + " bytes.");
+			ftp.setRestartOffset(resumeOffset);
+			metrics.recordResume(resumeOffset);
+		}
+		MeteredOutputStream meter = new MeteredOutputStream(output);
+		boolean result = false;
+		try {
+			result = ftp.retrieveFile(remoteFile, meter);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't retrieve " + remoteFile);
+			e.printStackTrace();
+		} finally {
+			try {
+				meter.close();
+			} catch (IOException e) {
+			}
 		}
 
-		sourceFile.delete();
+		metrics.recordBytes(meter.getCount());
+		if (meter.getTimeToFirstByte() >= 0)
+			metrics.recordFirstByte(meter.getTimeToFirstByte());
+		if (throttle != null)
+			metrics.recordThrottleSleep(throttle.getSleepTime());
+
+		return result;
+	}
+
+	/**
+	 * Stop polling at a given time, rather than one file duration after I was
+	 * created.
+	 * 
+	 * @param quittingTime
+	 *            time in ms
+	 */
+	public void setQuittingTime(long quittingTime) {
+		this.quittingTime = quittingTime;
+	}
+
+	/**
+	 * Forget what I know of the archive and journal, so they're read again.
+	 * Another node may have changed them while it held my lease.
+	 */
+	public void reload() {
+		archiveIndex.reload();
+		journal.reload();
 	}
 
 	/**
-	 * Decide if I've checked for all files.
+	 * settings accessor.
 	 * 
-	 * @return true if I've polled all files
+	 * @return my settings
 	 */
-	public boolean polledLast() {
-		return pollTime < oldestPollTime;
+	public NetRSSettings getSettings() {
+		return settings;
 	}
 
 	/**
@@ -287,16 +1351,69 @@ public class NetRSConnection {
 		};
 	}
 
-	public void setTimeSpan(TimeSpan timeSpan) {
-		
-		pollTime = timeSpan.endTime - (timeSpan.endTime % (settings.duration * ONE_MINUTE));
-		pollTime -= settings.duration * ONE_MINUTE;
+	/**
+	 * @return the span of time to retrieve files from
+	 */
+	public synchronized TimeSpan getTimeSpan() {
+		return timeSpan;
+	}
+
+	/**
+	 * Change the span of time to retrieve files from. The file currently being
+	 * written is never retrieved.
+	 * 
+	 * @param timeSpan
+	 */
+	public synchronized void setTimeSpan(TimeSpan timeSpan) {
+		this.timeSpan = timeSpan;
+
+		long[] intervals = getIntervals();
+		if (intervals.length > 0)
+			LOGGER.info("Will retreive files from  " + format(intervals[intervals.length - 1]) + " to "
+					+ format(intervals[0]));
+	}
+
+	/**
+	 * List the intervals in my time span, newest first. An interval is covered
+	 * by a single file.
+	 * 
+	 * @return start time of each interval in ms
+	 */
+	public synchronized long[] getIntervals() {
+		long duration = settings.duration * ONE_MINUTE;
+
+		// Find start of current file and backup one interval. Do not attempt to
+		// transfer the file that is currently being written.
+		long newest = timeSpan.endTime - (timeSpan.endTime % duration) - duration;
 
 		// Retrieve files that are at most this old
-		oldestPollTime = timeSpan.startTime - (timeSpan.startTime % (settings.duration * ONE_MINUTE));
+		long oldest = timeSpan.startTime - (timeSpan.startTime % duration);
+
+		if (newest < oldest)
+			return new long[0];
 
-		LOGGER.info("Will retreive files from  " + fileNameFormat.format(new Date(oldestPollTime)) + " to "
-				+ fileNameFormat.format(new Date(pollTime)));
+		long[] intervals = new long[(int) ((newest - oldest) / duration) + 1];
+		for (int i = 0; i < intervals.length; i++)
+			intervals[i] = newest - i * duration;
 
+		return intervals;
+	}
+
+	/**
+	 * Name the file covering an interval.
+	 * 
+	 * @param interval
+	 *            start of the interval in ms
+	 * @return path of the file on the receiver
+	 */
+	private String format(long interval) {
+		return fileNameFormat.format(interval);
+	}
+
+	/**
+	 * @return the format of file names on my receiver
+	 */
+	public FileNameFormat getFileNameFormat() {
+		return fileNameFormat;
 	}
-}
\ No newline at end of file
+}
@@ -1,8 +1,28 @@
 package gov.usgs.volcanoes.netRSFileMover;
 
-import java.util.Iterator;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +31,7 @@ import com.martiansoftware.jsap.ParseException;
 
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
 import gov.usgs.volcanoes.core.time.TimeSpan;
+import gov.usgs.volcanoes.core.util.StringUtils;
 
 /**
  * Retrieve files from a Trimble NetRS device via FTP
@@ -23,10 +44,29 @@ public final class NetRSFileMover {
   public static final boolean DEFAULT_BACKFILL_FIRST = true;
   public static final int DEFAULT_MAX_RUNTIME = 60 * 60 * 24;
   public static final int ONE_DAY = 1000 * 60 * 60 * 24;
+  public static final int DEFAULT_MAX_CONCURRENT_POLLS = 8;
+  public static final boolean DEFAULT_DEPTH_FIRST = false;
+  public static final int DEFAULT_METRICS_INTERVAL = 60;
+  public static final int DEFAULT_COMPRESSION_THREADS = Runtime.getRuntime().availableProcessors();
+  public static final int DEFAULT_LEASE_DURATION = 120;
+  public static final int DEFAULT_POST_ARCHIVE_THREADS = 2;
+  public static final int DEFAULT_POST_ARCHIVE_QUEUE_SIZE = 100;
+  public static final int DEFAULT_POST_ARCHIVE_TIMEOUT = 600;
+  public static final int DEFAULT_POST_ARCHIVE_RETRIES = 3;
+  public static final int DEFAULT_POST_ARCHIVE_RETRY_INTERVAL = 300;
 
   private static final Logger LOGGER = LoggerFactory.getLogger(NetRSFileMover.class);
 
   private List<NetRSConnection> receivers;
+  private final int maxConcurrentPolls;
+  private final boolean depthFirst;
+  private final ThreadModel threadModel;
+  private final Map<File, FileLock> locks;
+  private final MetricsExporter metrics;
+  private final ThreadPoolExecutor publishPool;
+  private final LeaseManager leases;
+  private final long leaseDuration;
+  private final ArchivePipeline pipeline;
 
   /**
    * simple constructor
@@ -42,8 +82,72 @@ public final class NetRSFileMover {
       System.exit(1);
     }
 
+    maxConcurrentPolls = StringUtils.stringToInt(configFile.getString("maxConcurrentPolls"),
+        DEFAULT_MAX_CONCURRENT_POLLS);
+    depthFirst = StringUtils.stringToBoolean(configFile.getString("depthFirst"),
+        DEFAULT_DEPTH_FIRST);
+    threadModel = NetRSSettings.parseThreadModel(configFile.getString("threadModel"));
+    if (threadModel == ThreadModel.VIRTUAL && !ThreadModel.isVirtualAvailable())
+      LOGGER.warn("Virtual threads need Java 21 or later. I'll poll on platform threads.");
+
+    String metricsFile = configFile.getString("metricsFile");
+    metrics = new MetricsExporter(metricsFile == null ? null : new File(metricsFile),
+        StringUtils.stringToInt(configFile.getString("metricsInterval"), DEFAULT_METRICS_INTERVAL));
+
+    // Files are compressed on a pool of their own. If it falls behind, polling threads lend a hand.
+    int compressionThreads = StringUtils.stringToInt(configFile.getString("compressionThreads"),
+        DEFAULT_COMPRESSION_THREADS);
+    if (compressionThreads > 0) {
+      publishPool = new ThreadPoolExecutor(compressionThreads, compressionThreads, 0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(compressionThreads * 4),
+          new ThreadPoolExecutor.CallerRunsPolicy());
+    } else {
+      publishPool = null;
+    }
+
+    String leaseDir = configFile.getString("leaseDir");
+    String nodeName = NetRSSettings.parseNodeName(configFile.getString("nodeName"));
+
+    // Archived files are handed to a pool of their own. If it falls behind, polling threads lend a
+    // hand.
+    List<ArchiveHandler> handlers = new ArrayList<ArchiveHandler>();
+    List<String> commands = configFile.getList("postArchiveCommand");
+    if (commands != null) {
+      int timeout = StringUtils.stringToInt(configFile.getString("postArchiveTimeout"),
+          DEFAULT_POST_ARCHIVE_TIMEOUT);
+      for (String command : commands) {
+        handlers.add(new CommandHandler(command, timeout));
+      }
+    }
+    for (ArchiveHandler handler : ServiceLoader.load(ArchiveHandler.class)) {
+      handlers.add(handler);
+    }
+    if (handlers.size() > 0) {
+      for (ArchiveHandler handler : handlers) {
+        handler.configure(configFile);
+        LOGGER.info("Handing archived files to " + handler);
+      }
+
+      File spoolDir = new File(StringUtils.stringToString(configFile.getString("outputDir"),
+          NetRSSettings.DEFAULT_OUTPUT_DIR), "spool");
+      if (leaseDir != null) {
+        spoolDir = new File(spoolDir, nodeName);
+      }
+      spoolDir = new File(StringUtils.stringToString(configFile.getString("spoolDir"), spoolDir.getPath()));
+      pipeline = new ArchivePipeline(handlers, spoolDir,
+          StringUtils.stringToInt(configFile.getString("postArchiveThreads"), DEFAULT_POST_ARCHIVE_THREADS),
+          StringUtils.stringToInt(configFile.getString("postArchiveQueueSize"),
+              DEFAULT_POST_ARCHIVE_QUEUE_SIZE),
+          StringUtils.stringToInt(configFile.getString("postArchiveRetries"), DEFAULT_POST_ARCHIVE_RETRIES),
+          StringUtils.stringToInt(configFile.getString("postArchiveRetryInterval"),
+              DEFAULT_POST_ARCHIVE_RETRY_INTERVAL) * 1000L);
+    } else {
+      pipeline = null;
+    }
+
     receivers = new LinkedList<NetRSConnection>();
-    System.out.println("TOMP: " + selectedReceivers);
+    Map<String, TokenBucket> siteRateLimits = new HashMap<String, TokenBucket>();
+    LOGGER.debug("Selected receivers: {}", selectedReceivers);
     for (String receiverName : configFile.getList("receiver")) {
       if (selectedReceivers != null && !selectedReceivers.contains(receiverName)) {
         System.out.println("Skipping " + receiverName);
@@ -52,9 +156,64 @@ public final class NetRSFileMover {
       NetRSSettings settings =
           new NetRSSettings(receiverName, configFile.getSubConfig(receiverName, true));
 
-      NetRSConnection connection = new NetRSConnection(settings);
+      // receivers at a site share a single bandwidth budget
+      TokenBucket siteRateLimit = null;
+      if (settings.siteBytesPerSecond > 0) {
+        siteRateLimit = siteRateLimits.get(settings.site);
+        if (siteRateLimit == null) {
+          siteRateLimit = new TokenBucket(settings.siteBytesPerSecond);
+          siteRateLimits.put(settings.site, siteRateLimit);
+        }
+      }
+
+      NetRSConnection connection = new NetRSConnection(settings, siteRateLimit, publishPool, pipeline);
       receivers.add(connection);
+      metrics.register(connection.getMetrics());
+    }
+
+    locks = new HashMap<File, FileLock>();
+
+    // Nodes sharing a lease directory split the receivers between them, a site at a time.
+    leaseDuration = StringUtils.stringToInt(configFile.getString("leaseDuration"), DEFAULT_LEASE_DURATION) * 1000L;
+    if (leaseDir != null) {
+      Set<String> sites = new LinkedHashSet<String>();
+      for (NetRSConnection receiver : receivers) {
+        sites.add(receiver.getSettings().site);
+      }
+      leases = new LeaseManager(new File(leaseDir), nodeName, leaseDuration, sites);
+    } else {
+      leases = null;
+    }
+  }
+
+  /**
+   * Take an exclusive lock on each temp directory, so overlapping runs don't trample each other's
+   * downloads. Locks are held until I exit.
+   * 
+   * @return false if another process holds a lock
+   */
+  private boolean lockTempDirs() {
+    for (NetRSConnection receiver : receivers) {
+      File tmpDir = receiver.getSettings().tmpDir.getAbsoluteFile();
+      if (locks.containsKey(tmpDir)) {
+        continue;
+      }
+
+      tmpDir.mkdirs();
+      File lockFile = new File(tmpDir, ".lock");
+      try {
+        FileLock lock = new RandomAccessFile(lockFile, "rw").getChannel().tryLock();
+        if (lock == null) {
+          LOGGER.error("Another NetRSFileMover is using " + tmpDir);
+          return false;
+        }
+        locks.put(tmpDir, lock);
+      } catch (IOException e) {
+        LOGGER.error("Couldn't lock " + lockFile + ". " + e.getMessage());
+        return false;
+      }
     }
+    return true;
   }
 
 
@@ -65,18 +224,302 @@ public final class NetRSFileMover {
   }
 
   /**
-   * Do the work
+   * Do the work. Receivers are polled concurrently, so a slow or unresponsive receiver doesn't
+   * hold up the others. The newest file from each receiver is fetched before any backfill.
+   * 
+   * @throws InterruptedException
+   */
+  void go() throws InterruptedException {
+    ScheduledExecutorService leaseTimer = startLeasing();
+    PollScheduler scheduler = new PollScheduler(maxConcurrentPolls, depthFirst, threadModel);
+    metrics.start();
+    startPipeline();
+    try {
+      for (NetRSConnection receiver : getOwnedReceivers()) {
+        scheduler.submit(receiver);
+      }
+      scheduler.awaitIdle();
+      awaitPublishing();
+    } finally {
+      scheduler.shutdown();
+      metrics.stop();
+      stopLeasing(leaseTimer);
+    }
+  }
+
+  /**
+   * Take my share of the sites and keep their leases renewed until stopLeasing() is called. Sites
+   * aren't rebalanced during a single sweep.
+   * 
+   * @return timer renewing the leases, or null if I'm not sharing receivers
+   */
+  private ScheduledExecutorService startLeasing() {
+    if (leases == null) {
+      return null;
+    }
+
+    try {
+      leases.balance(Collections.<String>emptySet());
+    } catch (IOException e) {
+      LOGGER.error("Couldn't take leases. " + e.getMessage());
+    }
+
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    timer.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          leases.renew();
+        } catch (IOException e) {
+          LOGGER.error("Couldn't renew leases. " + e.getMessage());
+        }
+      }
+    }, leaseDuration / 3, leaseDuration / 3, TimeUnit.MILLISECONDS);
+    return timer;
+  }
+
+  private void stopLeasing(ScheduledExecutorService timer) {
+    if (timer != null) {
+      timer.shutdownNow();
+      leases.close();
+    }
+  }
+
+  /**
+   * @return receivers at sites I hold leases on, or all of them if I'm not sharing
+   */
+  private List<NetRSConnection> getOwnedReceivers() {
+    if (leases == null) {
+      return receivers;
+    }
+
+    Set<String> sites = leases.getOwned();
+    List<NetRSConnection> owned = new LinkedList<NetRSConnection>();
+    for (NetRSConnection receiver : receivers) {
+      if (sites.contains(receiver.getSettings().site)) {
+        owned.add(receiver);
+      }
+    }
+    return owned;
+  }
+
+  /**
+   * Wait for files still being compressed to reach the archive, and for archived files to be
+   * handled. Files waiting to be tried again are left in the spool.
+   * 
+   * @throws InterruptedException
    */
-  private void go() {
-    while (!receivers.isEmpty()) {
-      Iterator<NetRSConnection> it = receivers.iterator();
+  private void awaitPublishing() throws InterruptedException {
+    if (publishPool != null) {
+      publishPool.shutdown();
+      publishPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+    if (pipeline != null) {
+      pipeline.shutdown();
+    }
+  }
 
-      while (it.hasNext()) {
-        NetRSConnection receiver = it.next();
-        receiver.poll();
+  /**
+   * Hand on files archived, but not handled, before I was last stopped.
+   */
+  private void startPipeline() {
+    if (pipeline != null) {
+      pipeline.start();
+    }
+  }
 
-        if (receiver.polledLast())
-          it.remove();
+  /**
+   * Compare each receiver's archive against its time span and a single listing of the receiver,
+   * print a report of the gaps, and then poll only for gaps the receiver may have. Receivers at a
+   * site are reconciled one at a time.
+   * 
+   * @param fetch if false, just report the gaps
+   * @throws InterruptedException
+   */
+  void reconcile(boolean fetch) throws InterruptedException {
+    ScheduledExecutorService leaseTimer = startLeasing();
+    try {
+      reconcile(getOwnedReceivers(), fetch);
+    } finally {
+      stopLeasing(leaseTimer);
+    }
+  }
+
+  private void reconcile(List<NetRSConnection> receivers, boolean fetch) throws InterruptedException {
+    Map<String, List<NetRSConnection>> sites = new LinkedHashMap<String, List<NetRSConnection>>();
+    for (NetRSConnection receiver : receivers) {
+      List<NetRSConnection> site = sites.get(receiver.getSettings().site);
+      if (site == null) {
+        site = new LinkedList<NetRSConnection>();
+        sites.put(receiver.getSettings().site, site);
+      }
+      site.add(receiver);
+    }
+
+    final Map<NetRSConnection, GapReport> reports = new ConcurrentHashMap<NetRSConnection, GapReport>();
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.max(1, Math.min(maxConcurrentPolls, sites.size())));
+    for (final List<NetRSConnection> site : sites.values()) {
+      executor.execute(new Runnable() {
+        public void run() {
+          for (NetRSConnection receiver : site) {
+            try {
+              reports.put(receiver, receiver.reconcile());
+            } catch (RuntimeException e) {
+              LOGGER.error("Couldn't reconcile " + receiver.getSettings().systemName, e);
+            }
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+    for (NetRSConnection receiver : receivers) {
+      GapReport report = reports.get(receiver);
+      if (report != null) {
+        report.print(System.out);
+      }
+    }
+
+    if (!fetch) {
+      for (NetRSConnection receiver : receivers) {
+        receiver.disconnect();
+      }
+      return;
+    }
+
+    PollScheduler scheduler = new PollScheduler(maxConcurrentPolls, depthFirst, threadModel);
+    metrics.start();
+    startPipeline();
+    try {
+      for (NetRSConnection receiver : receivers) {
+        GapReport report = reports.get(receiver);
+        long[] gaps = report == null ? new long[0] : report.getFetchable();
+        if (gaps.length > 0) {
+          scheduler.submit(receiver, gaps);
+        } else {
+          receiver.disconnect();
+        }
+      }
+      scheduler.awaitIdle();
+      awaitPublishing();
+    } finally {
+      scheduler.shutdown();
+      metrics.stop();
+    }
+  }
+
+  /**
+   * Run until killed. Each receiver is polled shortly after each of its files is closed, with a
+   * little jitter so receivers aren't all contacted at once. The newly closed file jumps ahead of
+   * any backfill still queued. Each poll covers a span as long as the one I was started with,
+   * from the command line or the config, ending now.
+   * 
+   * Receivers with a tailInterval are also asked for new bytes of the file they're recording that
+   * often, so the freshest data is never more than a tailInterval old.
+   * 
+   * If sharing receivers with other nodes, I rebalance every third of a lease. Receivers I take
+   * over are polled straight away, so gaps left by a dead node are filled.
+   * 
+   * @throws InterruptedException
+   */
+  private void daemon() throws InterruptedException {
+    final PollScheduler scheduler = new PollScheduler(maxConcurrentPolls, depthFirst, threadModel);
+    final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    final Random random = new Random();
+    metrics.start();
+    startPipeline();
+
+    for (final NetRSConnection receiver : receivers) {
+      receiver.setQuittingTime(Long.MAX_VALUE);
+      final long span = receiver.getTimeSpan().endTime - receiver.getTimeSpan().startTime;
+
+      timer.schedule(new Runnable() {
+        private boolean first = true;
+
+        public void run() {
+          NetRSSettings settings = receiver.getSettings();
+          try {
+            // The first poll uses whatever time span I was started with.
+            if (!first) {
+              long now = System.currentTimeMillis();
+              receiver.setTimeSpan(new TimeSpan(now - span, now));
+            }
+            first = false;
+            if (leases == null || leases.owns(settings.site)) {
+              scheduler.submit(receiver);
+            }
+          } catch (RuntimeException e) {
+            LOGGER.error("Couldn't schedule a poll of " + settings.systemName, e);
+          } finally {
+            // The timer drops a task that throws, so always book the next poll.
+            long duration = settings.duration * 60 * 1000L;
+            long now = System.currentTimeMillis();
+            long nextClose = (now / duration + 1) * duration;
+            long delay = nextClose - now + settings.pollDelay * 1000L + jitter(settings);
+            timer.schedule(this, delay, TimeUnit.MILLISECONDS);
+          }
+        }
+
+        private long jitter(NetRSSettings settings) {
+          return settings.pollJitter > 0 ? random.nextInt(settings.pollJitter * 1000) : 0;
+        }
+      }, random.nextInt(Math.max(1, receiver.getSettings().pollJitter * 1000)), TimeUnit.MILLISECONDS);
+
+      final NetRSSettings settings = receiver.getSettings();
+      if (settings.tailInterval > 0) {
+        timer.scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            if (leases == null || leases.owns(settings.site)) {
+              long duration = settings.duration * 60 * 1000L;
+              long now = System.currentTimeMillis();
+              scheduler.submitTail(receiver, now - now % duration);
+            }
+          }
+        }, settings.tailInterval, settings.tailInterval, TimeUnit.SECONDS);
+      }
+    }
+
+    if (leases != null) {
+      timer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          rebalance(scheduler);
+        }
+      }, 0, leaseDuration / 3, TimeUnit.MILLISECONDS);
+    }
+
+    timer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Renew my leases and take or give up sites. Queued polls of receivers I've given up are dropped.
+   * Sites still being polled are given up once the poll finishes.
+   * 
+   * @param scheduler
+   */
+  private void rebalance(PollScheduler scheduler) {
+    Set<String> busy = new HashSet<String>();
+    for (NetRSConnection receiver : receivers) {
+      if (scheduler.isPolling(receiver)) {
+        busy.add(receiver.getSettings().site);
+      }
+    }
+
+    Set<String> before = leases.getOwned();
+    try {
+      leases.balance(busy);
+    } catch (IOException e) {
+      LOGGER.error("Couldn't renew leases. " + e.getMessage());
+    }
+    Set<String> after = leases.getOwned();
+
+    for (NetRSConnection receiver : receivers) {
+      String site = receiver.getSettings().site;
+      if (!after.contains(site)) {
+        scheduler.cancel(receiver);
+      } else if (!before.contains(site)) {
+        receiver.reload();
+        scheduler.submit(receiver);
       }
     }
   }
@@ -103,9 +546,18 @@ public final class NetRSFileMover {
       arch.setTimeSpan(config.timeSpan);
     }
 
-    arch.go();
+    if (!arch.lockTempDirs()) {
+      System.exit(1);
+    }
 
-    LOGGER.info("Got everything I'm going to get. Exiting.");
+    if (config.daemon) {
+      arch.daemon();
+    } else if (config.reconcile) {
+      arch.reconcile(!config.reportOnly);
+    } else {
+      arch.go();
+      LOGGER.info("Got everything I'm going to get. Exiting.");
+    }
   }
 
 }
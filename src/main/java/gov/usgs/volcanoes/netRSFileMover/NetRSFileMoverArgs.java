@@ -16,6 +16,7 @@ import com.martiansoftware.jsap.FlaggedOption;
 import com.martiansoftware.jsap.JSAP;
 import com.martiansoftware.jsap.JSAPResult;
 import com.martiansoftware.jsap.Parameter;
+import com.martiansoftware.jsap.Switch;
 
 import gov.usgs.volcanoes.core.args.Args;
 import gov.usgs.volcanoes.core.args.Arguments;
@@ -43,6 +44,9 @@ public class NetRSFileMoverArgs {
 
 	private static final Parameter[] PARAMETERS = new Parameter[] {
         new FlaggedOption("station", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 's', "station", "Station to fetch. May be repeated for multiple stations. If not provided, all stations in the config will be reteived."),
+        new Switch("daemon", JSAP.NO_SHORTFLAG, "daemon", "Keep running, polling each receiver shortly after each file is closed. Each poll covers a span as long as the one given with -t, or in the config, ending at the time of the poll."),
+        new Switch("reconcile", JSAP.NO_SHORTFLAG, "reconcile", "Report files missing from the archive, listing each receiver once, and fetch only those."),
+        new Switch("reportOnly", JSAP.NO_SHORTFLAG, "report-only", "With --reconcile, report files missing from the archive without fetching them."),
 	};
 
 	/** If true, log more. */
@@ -57,6 +61,15 @@ public class NetRSFileMoverArgs {
 	/** stations to fetch. */
 	public final List<String> stations;
 
+	/** If true, keep running. */
+	public final boolean daemon;
+
+	/** If true, fetch only files missing from the archive. */
+	public final boolean reconcile;
+
+	/** If true, report missing files without fetching them. */
+	public final boolean reportOnly;
+
 	/**
 	 * Class constructor.
 	 * 
@@ -86,6 +99,15 @@ public class NetRSFileMoverArgs {
 
 		stations = Arrays.asList(jsapResult.getStringArray("station"));
         LOGGER.debug("Setting: station={}",  stations);
+
+		daemon = jsapResult.getBoolean("daemon");
+		LOGGER.debug("Setting: daemon={}", daemon);
+
+		reconcile = jsapResult.getBoolean("reconcile");
+		LOGGER.debug("Setting: reconcile={}", reconcile);
+
+		reportOnly = jsapResult.getBoolean("reportOnly");
+		LOGGER.debug("Setting: reportOnly={}", reportOnly);
 		
 		configFileName = jsapResult.getString("config-filename");
 		LOGGER.debug("Setting: config-filename={}", configFileName);
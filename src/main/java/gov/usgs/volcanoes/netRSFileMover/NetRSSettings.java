@@ -26,14 +26,47 @@ public class NetRSSettings {
 	public static final String DEFAULT_SESSION_ID = "a";
 	public static final String DEFAULT_DATA_FORMAT = "T00";
 	public static final String DEFAULT_OUTPUT_DIR = "output";
-	public static final boolean DEFAULT_DEPTH_FIRST = false;
 	public static final int DEFAULT_CONNECT_TIMEOUT = 30;
+	public static final int DEFAULT_PORT = 21;
 	public static final boolean DEFAULT_PASSIVE_FTP = true;
 	public static final int DEFAULT_WINDOW_SIZE = 0;
 	public static final boolean DEFAULT_RESUME_TRANSFER = true;
 	public static final String DEFAULT_TIME_SPAN = "-7d";
 	public static final String DEFAULT_RECEIVER_TYPE = "NetRS";
 	public static final boolean DEFAULT_STRICT_REPLY_PARSING = true;
+	public static final int DEFAULT_SITE_MAX_CONCURRENT_POLLS = 1;
+	public static final int DEFAULT_KEEP_ALIVE_INTERVAL = 60;
+	public static final int DEFAULT_IDLE_TIMEOUT = 240;
+	public static final int DEFAULT_RECONNECT_ATTEMPTS = 1;
+	public static final boolean DEFAULT_LIST_DIRECTORIES = true;
+	public static final String DEFAULT_LIST_COMMAND = "auto";
+	public static final int DEFAULT_TAIL_INTERVAL = 0;
+	public static final int DEFAULT_LISTING_CACHE_TTL = 600;
+	public static final int DEFAULT_LISTING_CACHE_SIZE = 64;
+	public static final boolean DEFAULT_PERSIST_ARCHIVE_INDEX = false;
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	public static final boolean DEFAULT_FSYNC = false;
+	public static final int DEFAULT_SEGMENTS = 1;
+	public static final int DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+	public static final boolean DEFAULT_ADAPTIVE_TUNING = false;
+	public static final int DEFAULT_MIN_WINDOW_SIZE = 1024;
+	public static final int DEFAULT_MAX_WINDOW_SIZE = 64 * 1024;
+	public static final int DEFAULT_POLL_DELAY = 120;
+	public static final int DEFAULT_POLL_JITTER = 60;
+	public static final int DEFAULT_MISSING_RECHECK_INTERVAL = 6 * 60 * 60;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final int DEFAULT_RETRY_INTERVAL = 60;
+	public static final int DEFAULT_MAX_RETRY_INTERVAL = 60 * 60;
+	public static final int DEFAULT_BREAKER_THRESHOLD = 3;
+	public static final int DEFAULT_BREAKER_COOL_DOWN = 30 * 60;
+	public static final boolean DEFAULT_VERIFY_TRANSFERS = true;
+	public static final String DEFAULT_CHECKSUM_COMMAND = "auto";
+	public static final int DEFAULT_VERIFY_BLOCK_SIZE = 64 * 1024;
+	public static final int DEFAULT_VERIFY_ATTEMPTS = 2;
+	public static final String DEFAULT_COMPRESSION = "none";
+	public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+	public static final String DEFAULT_THREAD_MODEL = "platform";
+	public static final String DEFAULT_NODE_NAME = "localhost";
 
 	public final String userName;
 	public final String password;
@@ -44,10 +77,12 @@ public class NetRSSettings {
 	public final String sessionId;
 	public final String dataFormat;
 	public final String address;
+	public final int port;
 	public final boolean printHash;
 	public final String fileNameFormat;
 	public final String outputDir;
-	public final boolean depthFirst;
+	public final File tmpDir;
+	public final String nodeName;
 	public final int connectTimeout;
 	public final int bytesPerSecond;
 	public final boolean passiveFTP;
@@ -56,6 +91,42 @@ public class NetRSSettings {
 	public final TimeSpan timeSpan;
 	public final ReceiverType receiverType;
 	public boolean strictReplyParsing;
+	public final String site;
+	public final int siteMaxConcurrentPolls;
+	public final int keepAliveInterval;
+	public final int idleTimeout;
+	public final int reconnectAttempts;
+	public final boolean listDirectories;
+	public final String listCommand;
+	public final int tailInterval;
+	public final int listingCacheTTL;
+	public final int listingCacheSize;
+	public final boolean persistArchiveIndex;
+	public final int siteBytesPerSecond;
+	public final int bufferSize;
+	public final boolean fsync;
+	public final int segments;
+	public final int minSegmentSize;
+	public final boolean adaptiveTuning;
+	public final int minBytesPerSecond;
+	public final int maxBytesPerSecond;
+	public final int minWindowSize;
+	public final int maxWindowSize;
+	public final int pollDelay;
+	public final int pollJitter;
+	public final int missingRecheckInterval;
+	public final int maxRetries;
+	public final int retryInterval;
+	public final int maxRetryInterval;
+	public final int breakerThreshold;
+	public final int breakerCoolDown;
+	public final boolean verifyTransfers;
+	public final String checksumCommand;
+	public final int verifyBlockSize;
+	public final int verifyAttempts;
+	public final boolean gzip;
+	public final int compressionLevel;
+	public final ThreadModel threadModel;
 
 	/**
 	 * Simple constructor.
@@ -81,10 +152,21 @@ public class NetRSSettings {
 		}
 
 		bytesPerSecond = StringUtils.stringToInt(cf.getString("bytesPerSecond"), Integer.MIN_VALUE);
-		depthFirst = StringUtils.stringToBoolean(cf.getString("depthFirst"), DEFAULT_DEPTH_FIRST);
+		siteBytesPerSecond = StringUtils.stringToInt(cf.getString("siteBytesPerSecond"), Integer.MIN_VALUE);
 		printHash = StringUtils.stringToBoolean(cf.getString("printHash"), DEFAULT_PRINT_HASH);
 		resumeTransfer = StringUtils.stringToBoolean(cf.getString("resumeTransfer"), DEFAULT_RESUME_TRANSFER);
+		segments = StringUtils.stringToInt(cf.getString("segments"), DEFAULT_SEGMENTS);
+		minSegmentSize = StringUtils.stringToInt(cf.getString("minSegmentSize"), DEFAULT_MIN_SEGMENT_SIZE);
 		strictReplyParsing = StringUtils.stringToBoolean(cf.getString("strictReplyParsing"), DEFAULT_STRICT_REPLY_PARSING);
+		listDirectories = StringUtils.stringToBoolean(cf.getString("listDirectories"), DEFAULT_LIST_DIRECTORIES);
+		tailInterval = StringUtils.stringToInt(cf.getString("tailInterval"), DEFAULT_TAIL_INTERVAL);
+		listCommand = StringUtils.stringToString(cf.getString("listCommand"), DEFAULT_LIST_COMMAND).toUpperCase();
+		if (!(listCommand.equals("AUTO") || listCommand.equals("MLSD") || listCommand.equals("LIST")
+				|| listCommand.equals("STAT")))
+			throw new RuntimeException("listCommand must be auto, MLSD, LIST or STAT. " + listCommand
+					+ " doesn't cut it.");
+		listingCacheTTL = StringUtils.stringToInt(cf.getString("listingCacheTTL"), DEFAULT_LISTING_CACHE_TTL);
+		listingCacheSize = StringUtils.stringToInt(cf.getString("listingCacheSize"), DEFAULT_LISTING_CACHE_SIZE);
 
 		duration = StringUtils.stringToInt(cf.getString("duration"), DEFAULT_DURATION);
 		usePerDaySubdirectories = StringUtils.stringToBoolean(cf.getString("perDaySubdirectories"),
@@ -94,6 +176,30 @@ public class NetRSSettings {
 		timeSpan = new TimeSpanParser(NetRSFileMoverArgs.INPUT_TIME_FORMAT).parse(cf.getString("timeSpan"));
 
 		connectTimeout = StringUtils.stringToInt(cf.getString("connectTimeout"), DEFAULT_CONNECT_TIMEOUT);
+		pollDelay = StringUtils.stringToInt(cf.getString("pollDelay"), DEFAULT_POLL_DELAY);
+		pollJitter = StringUtils.stringToInt(cf.getString("pollJitter"), DEFAULT_POLL_JITTER);
+		missingRecheckInterval = StringUtils.stringToInt(cf.getString("missingRecheckInterval"),
+				DEFAULT_MISSING_RECHECK_INTERVAL);
+		keepAliveInterval = StringUtils.stringToInt(cf.getString("keepAliveInterval"), DEFAULT_KEEP_ALIVE_INTERVAL);
+		idleTimeout = StringUtils.stringToInt(cf.getString("idleTimeout"), DEFAULT_IDLE_TIMEOUT);
+		reconnectAttempts = StringUtils.stringToInt(cf.getString("reconnectAttempts"), DEFAULT_RECONNECT_ATTEMPTS);
+		maxRetries = StringUtils.stringToInt(cf.getString("maxRetries"), DEFAULT_MAX_RETRIES);
+		retryInterval = Math.max(1, StringUtils.stringToInt(cf.getString("retryInterval"), DEFAULT_RETRY_INTERVAL));
+		maxRetryInterval = Math.max(retryInterval,
+				StringUtils.stringToInt(cf.getString("maxRetryInterval"), DEFAULT_MAX_RETRY_INTERVAL));
+		breakerThreshold = StringUtils.stringToInt(cf.getString("breakerThreshold"), DEFAULT_BREAKER_THRESHOLD);
+		breakerCoolDown = StringUtils.stringToInt(cf.getString("breakerCoolDown"), DEFAULT_BREAKER_COOL_DOWN);
+		verifyTransfers = StringUtils.stringToBoolean(cf.getString("verifyTransfers"), DEFAULT_VERIFY_TRANSFERS);
+		checksumCommand = StringUtils.stringToString(cf.getString("checksumCommand"), DEFAULT_CHECKSUM_COMMAND)
+				.toUpperCase();
+		if (!(checksumCommand.equals("AUTO") || checksumCommand.equals("NONE") || checksumCommand.equals("XCRC")
+				|| checksumCommand.equals("XMD5") || checksumCommand.equals("XSHA1")
+				|| checksumCommand.equals("XSHA256")))
+			throw new RuntimeException("checksumCommand must be auto, none, XCRC, XMD5, XSHA1 or XSHA256. "
+					+ checksumCommand + " doesn't cut it.");
+		verifyBlockSize = Math.max(1024, StringUtils.stringToInt(cf.getString("verifyBlockSize"),
+				DEFAULT_VERIFY_BLOCK_SIZE));
+		verifyAttempts = StringUtils.stringToInt(cf.getString("verifyAttempts"), DEFAULT_VERIFY_ATTEMPTS);
 
 		sessionId = StringUtils.stringToString(cf.getString("sessionId"), DEFAULT_SESSION_ID);
 
@@ -102,12 +208,38 @@ public class NetRSSettings {
 			throw new RuntimeException("dataFormat must be either T00 or Binex. " + dataFormat + " doesn't cut it.");
 
 		address = cf.getString("address");
+		port = StringUtils.stringToInt(cf.getString("port"), DEFAULT_PORT);
 
 		passiveFTP = StringUtils.stringToBoolean(cf.getString("passiveFTP"), DEFAULT_PASSIVE_FTP);
 
 		windowSize = StringUtils.stringToInt(cf.getString("windowSize"), DEFAULT_WINDOW_SIZE);
 
+		adaptiveTuning = StringUtils.stringToBoolean(cf.getString("adaptiveTuning"), DEFAULT_ADAPTIVE_TUNING);
+		minBytesPerSecond = StringUtils.stringToInt(cf.getString("minBytesPerSecond"), Math.max(1, bytesPerSecond / 4));
+		maxBytesPerSecond = StringUtils.stringToInt(cf.getString("maxBytesPerSecond"),
+				Math.max(minBytesPerSecond, bytesPerSecond));
+		minWindowSize = StringUtils.stringToInt(cf.getString("minWindowSize"), DEFAULT_MIN_WINDOW_SIZE);
+		maxWindowSize = StringUtils.stringToInt(cf.getString("maxWindowSize"), DEFAULT_MAX_WINDOW_SIZE);
+		bufferSize = Math.max(1, StringUtils.stringToInt(cf.getString("bufferSize"), DEFAULT_BUFFER_SIZE));
+
 		outputDir = StringUtils.stringToString(cf.getString("outputDir"), DEFAULT_OUTPUT_DIR);
+		nodeName = parseNodeName(cf.getString("nodeName"));
+		// nodes sharing an archive each download to a directory of their own
+		if (cf.getString("leaseDir") == null)
+			tmpDir = new File(outputDir, "tmp");
+		else
+			tmpDir = new File(new File(outputDir, "tmp"), nodeName);
+		fsync = StringUtils.stringToBoolean(cf.getString("fsync"), DEFAULT_FSYNC);
+
+		String compression = StringUtils.stringToString(cf.getString("compression"), DEFAULT_COMPRESSION);
+		if (!(compression.equals("none") || compression.equals("gzip")))
+			throw new RuntimeException("compression must be either none or gzip. " + compression + " doesn't cut it.");
+		gzip = compression.equals("gzip");
+		compressionLevel = Math.max(1, Math.min(9, StringUtils.stringToInt(cf.getString("compressionLevel"),
+				DEFAULT_COMPRESSION_LEVEL)));
+		threadModel = parseThreadModel(cf.getString("threadModel"));
+		persistArchiveIndex = StringUtils.stringToBoolean(cf.getString("persistArchiveIndex"),
+				DEFAULT_PERSIST_ARCHIVE_INDEX);
 		File f = new File(outputDir);
 		if (!f.exists())
 			f.mkdir();
@@ -116,12 +248,49 @@ public class NetRSSettings {
 		receiverType = ReceiverType.parse(typeString);
 		
 		fileNameFormat = getFileNameFormat();
-		
+
+		site = StringUtils.stringToString(cf.getString("site"), systemName);
+		siteMaxConcurrentPolls = StringUtils.stringToInt(cf.getString("siteMaxConcurrentPolls"),
+				DEFAULT_SITE_MAX_CONCURRENT_POLLS);
+	}
+
+	/**
+	 * Read a threadModel setting.
+	 *
+	 * @param threadModelString
+	 *            setting, or null for the default
+	 * @return kind of thread to transfer on
+	 */
+	public static ThreadModel parseThreadModel(String threadModelString) {
+		String s = StringUtils.stringToString(threadModelString, DEFAULT_THREAD_MODEL);
+		ThreadModel threadModel = ThreadModel.parse(s);
+		if (threadModel == null)
+			throw new RuntimeException("threadModel must be either platform or virtual. " + s + " doesn't cut it.");
+
+		return threadModel;
+	}
+
+	/**
+	 * Read a nodeName setting.
+	 *
+	 * @param nodeNameString
+	 *            setting, or null for the host name
+	 * @return name of this node
+	 */
+	public static String parseNodeName(String nodeNameString) {
+		if (nodeNameString != null)
+			return nodeNameString;
+
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return DEFAULT_NODE_NAME;
+		}
 	}
 
 	/**
-	 * Construct a string, suitable for passing to SimpleDateFormat,
-	 * representing the path of a file on the receiver.
+	 * Construct a string, suitable for passing to FileNameFormat or
+	 * SimpleDateFormat, representing the path of a file on the receiver.
 	 * 
 	 * @return
 	 */
@@ -157,8 +326,11 @@ public class NetRSSettings {
 		sb.append("sessionId = " + sessionId + "\n");
 		sb.append("dataFormat = " + dataFormat + "\n");
 		sb.append("address = " + address + "\n");
+		sb.append("port = " + port + "\n");
 		sb.append("receiverType = " + receiverType + "\n");
 		sb.append("strictReplyParsing = " + strictReplyParsing + "\n");
+		sb.append("site = " + site + "\n");
+		sb.append("siteMaxConcurrentPolls = " + siteMaxConcurrentPolls + "\n");
 
 		return sb.toString();
 	}
@@ -0,0 +1,30 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+/**
+ * The outcome of polling a receiver for a single file.
+ */
+public enum PollResult {
+	/** file was retrieved and archived */
+	ARCHIVED,
+	/** file was already archived, or there was no need to ask for it */
+	SKIPPED,
+	/** receiver doesn't have the file */
+	MISSING,
+	/** receiver has the file but I couldn't get it */
+	FAILED,
+	/** couldn't connect to the receiver */
+	UNREACHABLE,
+	/** receiver has been unreachable and is being left alone for a while */
+	DEFERRED,
+	/** new bytes of the file being recorded were fetched */
+	TAILED;
+
+	/**
+	 * Decide if the file is worth asking for again later.
+	 *
+	 * @return true if the poll should be retried
+	 */
+	public boolean shouldRetry() {
+		return this == FAILED || this == UNREACHABLE || this == DEFERRED;
+	}
+}
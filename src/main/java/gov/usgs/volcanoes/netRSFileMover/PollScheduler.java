@@ -0,0 +1,456 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Poll receivers concurrently from a priority queue of work items, each one a
+ * single interval from a single receiver. The newest interval of each receiver
+ * is polled first so fresh data arrives quickly; older intervals fill whatever
+ * capacity is left. Backfill is ordered newest first across all receivers, or
+ * receiver by receiver if depth-first. A look at the file a receiver is still
+ * recording goes ahead of everything.
+ *
+ * A receiver is never polled by more than one thread at a time. The number of
+ * receivers polled at once is capped globally and for each site. Receivers
+ * behind a common link, such as a radio hub, should share a site. Each
+ * receiver keeps its own queue and only the most urgent item of each idle
+ * receiver waits in the shared one, so a deep backfill doesn't slow
+ * dispatching.
+ *
+ * A failed item is requeued. Its receiver is left alone for a while, backing
+ * off exponentially with each consecutive failure, and the item is dropped
+ * after too many retries. Items refused while a receiver's circuit breaker is
+ * open are held until it lets a probe through.
+ *
+ * Polls run on platform or virtual threads. Either way no more than
+ * maxConcurrentPolls run at once.
+ */
+public class PollScheduler {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PollScheduler.class);
+
+	/** Work item priorities, most urgent first. */
+	private enum Priority {
+		TAIL, FRESH, BACKFILL
+	}
+
+	private final int maxConcurrentPolls;
+	private final boolean depthFirst;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService timer;
+	/** most urgent item of each receiver that isn't busy */
+	private final TreeSet<WorkItem> queue;
+	private final Set<WorkItem> queued;
+	private final Map<NetRSConnection, ReceiverState> receivers;
+	private final Map<String, Integer> sitePolls;
+
+	private int activePolls;
+	private int disconnects;
+	private long sequence;
+	private long nextWakeup;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param maxConcurrentPolls
+	 *            most receivers to poll at once
+	 * @param depthFirst
+	 *            if true, backfill one receiver at a time rather than one
+	 *            interval at a time
+	 * @param threadModel
+	 *            kind of thread to poll on
+	 */
+	public PollScheduler(int maxConcurrentPolls, boolean depthFirst, ThreadModel threadModel) {
+		this.maxConcurrentPolls = Math.max(1, maxConcurrentPolls);
+		this.depthFirst = depthFirst;
+		executor = threadModel.newExecutor(this.maxConcurrentPolls);
+		timer = Executors.newSingleThreadScheduledExecutor();
+		queue = new TreeSet<WorkItem>(new WorkItemComparator());
+		queued = new HashSet<WorkItem>();
+		receivers = new HashMap<NetRSConnection, ReceiverState>();
+		sitePolls = new HashMap<String, Integer>();
+		nextWakeup = Long.MAX_VALUE;
+
+		LOGGER.debug("Will poll up to " + this.maxConcurrentPolls + " receivers at once on " + threadModel
+				+ " threads.");
+	}
+
+	/**
+	 * Queue every interval in a receiver's time span which isn't already
+	 * queued. The receiver's newest interval goes to the front of the queue.
+	 *
+	 * @param receiver
+	 */
+	public synchronized void submit(NetRSConnection receiver) {
+		submit(receiver, receiver.getIntervals(), true);
+	}
+
+	/**
+	 * Queue a receiver's intervals as backfill, such as gaps found by
+	 * reconciling its archive. Intervals already queued are left alone.
+	 *
+	 * @param receiver
+	 * @param intervals
+	 *            start of each interval in ms, newest first
+	 */
+	public synchronized void submit(NetRSConnection receiver, long[] intervals) {
+		submit(receiver, intervals, false);
+	}
+
+	/**
+	 * Queue a look for new bytes in the file a receiver is recording. Nothing
+	 * is queued if a look is already waiting, and a failed look isn't retried.
+	 *
+	 * @param receiver
+	 * @param interval
+	 *            start of the interval being recorded, in ms
+	 */
+	public synchronized void submitTail(NetRSConnection receiver, long interval) {
+		ReceiverState state = getState(receiver);
+		state.cancelled = false;
+		enqueue(state, new WorkItem(receiver, interval, Priority.TAIL));
+		receiver.getMetrics().setQueueDepth(state.queued);
+		dispatch();
+	}
+
+	private void submit(NetRSConnection receiver, long[] intervals, boolean fresh) {
+		ReceiverState state = getState(receiver);
+		state.cancelled = false;
+		for (int i = 0; i < intervals.length; i++)
+			enqueue(state, new WorkItem(receiver, intervals[i], fresh && i == 0 ? Priority.FRESH
+					: Priority.BACKFILL));
+		receiver.getMetrics().setQueueDepth(state.queued);
+		dispatch();
+	}
+
+	private void enqueue(ReceiverState state, WorkItem item) {
+		if (queued.add(item)) {
+			if (!state.busy && !state.items.isEmpty())
+				queue.remove(state.items.first());
+			state.items.add(item);
+			state.queued++;
+			offer(state);
+		}
+	}
+
+	/**
+	 * Put a receiver's most urgent item in the shared queue, if it's free to be
+	 * polled.
+	 */
+	private void offer(ReceiverState state) {
+		if (!state.busy && !state.items.isEmpty())
+			queue.add(state.items.first());
+	}
+
+	/**
+	 * Drop a receiver's queued items, such as when another node takes it over.
+	 * An item being polled is allowed to finish but isn't retried.
+	 *
+	 * @param receiver
+	 */
+	public void cancel(NetRSConnection receiver) {
+		synchronized (this) {
+			ReceiverState state = receivers.get(receiver);
+			if (state == null)
+				return;
+
+			state.cancelled = true;
+			if (!state.busy && !state.items.isEmpty())
+				queue.remove(state.items.first());
+			queued.removeAll(state.items);
+			state.queued -= state.items.size();
+			state.items.clear();
+			receiver.getMetrics().setQueueDepth(state.queued);
+			notifyAll();
+
+			if (state.queued > 0 || state.busy)
+				return;
+
+			state.busy = true;
+			disconnects++;
+		}
+		disconnect(receiver);
+	}
+
+	/**
+	 * @param receiver
+	 * @return true if the receiver is being polled right now
+	 */
+	public synchronized boolean isPolling(NetRSConnection receiver) {
+		ReceiverState state = receivers.get(receiver);
+		return state != null && state.busy;
+	}
+
+	/**
+	 * Block until every queued item has been polled or given up on.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (activePolls > 0 || disconnects > 0 || !queue.isEmpty())
+			wait();
+	}
+
+	/**
+	 * Release polling threads. Items being polled are allowed to finish.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		timer.shutdownNow();
+	}
+
+	private ReceiverState getState(NetRSConnection receiver) {
+		ReceiverState state = receivers.get(receiver);
+		if (state == null) {
+			state = new ReceiverState(receivers.size(), new WorkItemComparator());
+			receivers.put(receiver, state);
+		}
+		return state;
+	}
+
+	/**
+	 * Start polling as many items as the global and site limits allow, most
+	 * urgent first. Caller must hold my lock.
+	 */
+	private void dispatch() {
+		long now = System.currentTimeMillis();
+		long wakeup = Long.MAX_VALUE;
+
+		Iterator<WorkItem> it = queue.iterator();
+		while (activePolls < maxConcurrentPolls && it.hasNext()) {
+			final WorkItem item = it.next();
+			ReceiverState state = receivers.get(item.receiver);
+			long readyAt = Math.max(item.notBefore, state.retryAt);
+			if (readyAt > now) {
+				wakeup = Math.min(wakeup, readyAt);
+				continue;
+			}
+
+			NetRSSettings settings = item.receiver.getSettings();
+			int polls = getSitePolls(settings.site);
+			if (polls >= settings.siteMaxConcurrentPolls)
+				continue;
+
+			it.remove();
+			state.items.remove(item);
+			state.busy = true;
+			sitePolls.put(settings.site, polls + 1);
+			activePolls++;
+
+			executor.execute(new Runnable() {
+				public void run() {
+					poll(item);
+				}
+			});
+		}
+
+		// come back when the first deferred item is ready
+		if (wakeup < nextWakeup) {
+			nextWakeup = wakeup;
+			timer.schedule(new Runnable() {
+				public void run() {
+					wakeup();
+				}
+			}, wakeup - now, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized void wakeup() {
+		nextWakeup = Long.MAX_VALUE;
+		dispatch();
+	}
+
+	private void poll(WorkItem item) {
+		PollResult result = PollResult.FAILED;
+		try {
+			if (item.priority == Priority.TAIL)
+				result = item.receiver.tail(item.interval);
+			else
+				result = item.receiver.poll(item.interval);
+		} catch (RuntimeException e) {
+			LOGGER.error("Unexpected error polling " + item.receiver.getSettings().systemName, e);
+		} finally {
+			if (finished(item, result))
+				disconnect(item.receiver);
+		}
+	}
+
+	/**
+	 * Close a receiver's connection without holding my lock, as QUIT may take
+	 * a while on a slow link. The receiver stays busy until it's closed.
+	 */
+	private void disconnect(NetRSConnection receiver) {
+		try {
+			receiver.disconnect();
+		} finally {
+			synchronized (this) {
+				ReceiverState state = receivers.get(receiver);
+				state.busy = false;
+				disconnects--;
+				offer(state);
+				dispatch();
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Account for a finished item and requeue it if it's worth another try.
+	 * 
+	 * @return true if the receiver has nothing left to do and should be
+	 *         disconnected
+	 */
+	private synchronized boolean finished(WorkItem item, PollResult result) {
+		NetRSSettings settings = item.receiver.getSettings();
+		ReceiverState state = receivers.get(item.receiver);
+
+		item.receiver.getMetrics().recordResult(result);
+		sitePolls.put(settings.site, getSitePolls(settings.site) - 1);
+		activePolls--;
+
+		// a look at a file being recorded says nothing about the receiver's backoff
+		if (item.priority != Priority.TAIL)
+			backOff(item.receiver, state, result);
+
+		if (result.shouldRetry() && item.retries < settings.maxRetries && !state.cancelled
+				&& item.priority != Priority.TAIL) {
+			item.retries++;
+			item.notBefore = state.retryAt;
+			state.items.add(item);
+			LOGGER.info("Will try " + settings.systemName + " again in " + (state.retryAt
+					- System.currentTimeMillis()) / 1000 + " s.");
+		} else {
+			queued.remove(item);
+			item.receiver.getMetrics().setQueueDepth(--state.queued);
+		}
+
+		// stay connected for the next look at a file being recorded
+		boolean disconnect = state.queued == 0 && item.priority != Priority.TAIL;
+		if (disconnect) {
+			disconnects++;
+		} else {
+			state.busy = false;
+			offer(state);
+		}
+
+		dispatch();
+		notifyAll();
+		return disconnect;
+	}
+
+	/**
+	 * Decide when a receiver may next be polled after a poll finishes.
+	 */
+	private void backOff(NetRSConnection receiver, ReceiverState state, PollResult result) {
+		NetRSSettings settings = receiver.getSettings();
+		if (result == PollResult.DEFERRED) {
+			// hold everything until the receiver's breaker lets a probe through
+			state.retryAt = Math.max(receiver.getRetryTime(),
+					System.currentTimeMillis() + settings.retryInterval * 1000L);
+		} else if (result.shouldRetry()) {
+			state.failures++;
+			long backoff = Math.min(settings.retryInterval * 1000L << Math.min(state.failures - 1, 20),
+					settings.maxRetryInterval * 1000L);
+			state.retryAt = System.currentTimeMillis() + backoff;
+		} else {
+			state.failures = 0;
+			state.retryAt = 0;
+		}
+	}
+
+	private int getSitePolls(String site) {
+		Integer polls = sitePolls.get(site);
+		return polls == null ? 0 : polls;
+	}
+
+	/**
+	 * Scheduling state of a single receiver.
+	 */
+	private static class ReceiverState {
+		private final int index;
+		/** items waiting to be polled, most urgent first */
+		private final TreeSet<WorkItem> items;
+		/** items waiting or being polled */
+		private int queued;
+		private boolean busy;
+		private boolean cancelled;
+		private int failures;
+		private long retryAt;
+
+		private ReceiverState(int index, Comparator<WorkItem> comparator) {
+			this.index = index;
+			items = new TreeSet<WorkItem>(comparator);
+		}
+	}
+
+	/**
+	 * A single interval to poll from a single receiver. Items are equal if
+	 * they name the same receiver and interval, and both or neither are a look
+	 * at a file being recorded.
+	 */
+	private class WorkItem {
+		private final NetRSConnection receiver;
+		private final long interval;
+		private final Priority priority;
+		private final long sequence;
+		private long notBefore;
+		private int retries;
+
+		private WorkItem(NetRSConnection receiver, long interval, Priority priority) {
+			this.receiver = receiver;
+			this.interval = interval;
+			this.priority = priority;
+			sequence = PollScheduler.this.sequence++;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof WorkItem))
+				return false;
+
+			WorkItem other = (WorkItem) o;
+			return receiver == other.receiver && interval == other.interval
+					&& (priority == Priority.TAIL) == (other.priority == Priority.TAIL);
+		}
+
+		public int hashCode() {
+			return receiver.hashCode() * 31 + (int) (interval ^ (interval >>> 32));
+		}
+	}
+
+	/**
+	 * Order work items most urgent first.
+	 */
+	private class WorkItemComparator implements Comparator<WorkItem> {
+		public int compare(WorkItem a, WorkItem b) {
+			int c = a.priority.compareTo(b.priority);
+			if (c != 0)
+				return c;
+
+			int indexA = receivers.get(a.receiver).index;
+			int indexB = receivers.get(b.receiver).index;
+			if (depthFirst && indexA != indexB)
+				return indexA < indexB ? -1 : 1;
+
+			// newest first
+			if (a.interval != b.interval)
+				return a.interval > b.interval ? -1 : 1;
+
+			if (indexA != indexB)
+				return indexA < indexB ? -1 : 1;
+
+			return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+		}
+	}
+}
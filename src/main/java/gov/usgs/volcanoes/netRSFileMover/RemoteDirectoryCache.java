@@ -0,0 +1,122 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+/**
+ * A cache of remote directory listings. Listings expire after a fixed time to
+ * live and the least recently used listings are evicted once the cache is
+ * full.
+ */
+public class RemoteDirectoryCache {
+
+	private final long timeToLiveMS;
+	private final Map<String, Listing> listings;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param timeToLiveMS
+	 *            how long a listing may be trusted
+	 * @param maxDirectories
+	 *            most directory listings to hold
+	 */
+	public RemoteDirectoryCache(long timeToLiveMS, final int maxDirectories) {
+		this.timeToLiveMS = timeToLiveMS;
+		listings = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+				return size() > maxDirectories;
+			}
+		};
+	}
+
+	/**
+	 * Retrieve a listing.
+	 *
+	 * @param directory
+	 *            remote directory
+	 * @return files in the directory keyed by name, or null if the directory
+	 *         hasn't been listed recently
+	 */
+	public synchronized Map<String, FTPFile> get(String directory) {
+		return get(directory, 0);
+	}
+
+	/**
+	 * Retrieve a listing taken since a given time, such as when the file I'm
+	 * after was closed. An older listing may not show the file, or may show it
+	 * before it was complete.
+	 *
+	 * @param directory
+	 *            remote directory
+	 * @param notBefore
+	 *            earliest acceptable listing time, in ms
+	 * @return files in the directory keyed by name, or null if the directory
+	 *         hasn't been listed since notBefore or recently
+	 */
+	public synchronized Map<String, FTPFile> get(String directory, long notBefore) {
+		Listing listing = listings.get(directory);
+		if (listing == null)
+			return null;
+
+		if (System.currentTimeMillis() - listing.listTime > timeToLiveMS || listing.listTime < notBefore) {
+			listings.remove(directory);
+			return null;
+		}
+
+		return listing.files;
+	}
+
+	/**
+	 * Remember a listing.
+	 *
+	 * @param directory
+	 *            remote directory
+	 * @param files
+	 *            directory contents. An empty array records a directory which
+	 *            doesn't exist.
+	 * @return files in the directory keyed by name
+	 */
+	public synchronized Map<String, FTPFile> put(String directory, FTPFile[] files) {
+		Map<String, FTPFile> byName = new HashMap<String, FTPFile>();
+		for (FTPFile file : files) {
+			if (file == null)
+				continue;
+
+			// some servers return the full path
+			String name = file.getName();
+			byName.put(name.substring(name.lastIndexOf('/') + 1), file);
+		}
+
+		Listing listing = new Listing(Collections.unmodifiableMap(byName));
+		listings.put(directory, listing);
+
+		return listing.files;
+	}
+
+	/**
+	 * Forget a listing.
+	 *
+	 * @param directory
+	 *            remote directory
+	 */
+	public synchronized void invalidate(String directory) {
+		listings.remove(directory);
+	}
+
+	private static class Listing {
+		private final long listTime;
+		private final Map<String, FTPFile> files;
+
+		private Listing(Map<String, FTPFile> files) {
+			this.files = files;
+			listTime = System.currentTimeMillis();
+		}
+	}
+}
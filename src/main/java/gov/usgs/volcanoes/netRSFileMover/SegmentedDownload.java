@@ -0,0 +1,272 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retrieve a file as several byte ranges at once. Each range is fetched over
+ * its own FTP session, starting at a REST offset, and written into place in
+ * the temp file. All ranges draw on the same rate limits, so together they
+ * keep to the receiver's bandwidth budget.
+ *
+ * If any range fails the temp file is truncated to the bytes known to be good
+ * from the start of the file, so an ordinary resume can finish the job.
+ */
+public class SegmentedDownload {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SegmentedDownload.class);
+
+	/**
+	 * A source of logged in FTP sessions.
+	 */
+	public interface SessionFactory {
+		/**
+		 * Open a new session ready to transfer binary files.
+		 *
+		 * @return a logged in session
+		 * @throws IOException
+		 */
+		FTPClient open() throws IOException;
+	}
+
+	private final SessionFactory sessions;
+	private final List<TokenBucket> rateLimits;
+	private final int bufferSize;
+	private final TransferMetrics metrics;
+	private final ThreadModel threadModel;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param sessions
+	 *            where to get a session for each range
+	 * @param rateLimits
+	 *            rate limits shared by all ranges
+	 * @param bufferSize
+	 *            read buffer size for each range
+	 * @param metrics
+	 *            where to count bytes and throttle time
+	 * @param threadModel
+	 *            kind of thread to fetch ranges on
+	 */
+	public SegmentedDownload(SessionFactory sessions, List<TokenBucket> rateLimits, int bufferSize,
+			TransferMetrics metrics, ThreadModel threadModel) {
+		this.sessions = sessions;
+		this.rateLimits = rateLimits;
+		this.bufferSize = bufferSize;
+		this.metrics = metrics;
+		this.threadModel = threadModel;
+	}
+
+	/**
+	 * Retrieve a file.
+	 *
+	 * @param remoteFile
+	 *            file to retrieve
+	 * @param size
+	 *            size of the remote file
+	 * @param segments
+	 *            number of ranges to fetch at once
+	 * @param tmpFile
+	 *            where to write the file
+	 * @param digests
+	 *            digests to update as bytes arrive, or null
+	 * @return true if every range was retrieved
+	 */
+	public boolean retrieve(String remoteFile, long size, int segments, File tmpFile, BlockDigests digests) {
+		LOGGER.info("Retrieving " + remoteFile + " in " + segments + " segments.");
+
+		long[] starts = new long[segments];
+		long[] ends = new long[segments];
+		long[] positions = new long[segments];
+
+		// ranges start on block boundaries, so each block is written by a
+		// single range
+		long segmentSize = (size + segments - 1) / segments;
+		if (digests != null)
+			segmentSize = (segmentSize + digests.getBlockSize() - 1) / digests.getBlockSize() * digests.getBlockSize();
+
+		for (int i = 0; i < segments; i++) {
+			starts[i] = Math.min(size, i * segmentSize);
+			ends[i] = Math.min(size, starts[i] + segmentSize);
+			positions[i] = starts[i];
+		}
+
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(tmpFile, "rw");
+			if (retrieveRanges(remoteFile, size, ends, positions, segments, file.getChannel(), digests))
+				return true;
+
+			// keep only what's contiguous from the start of the file
+			long good = 0;
+			for (int i = 0; i < segments && good == starts[i]; i++)
+				good = positions[i];
+			LOGGER.info("Keeping first " + good + " bytes of " + remoteFile + " to resume later.");
+			file.getChannel().truncate(good);
+
+		} catch (IOException e) {
+			LOGGER.error("Couldn't write " + tmpFile + ". " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			close(file);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Fetch damaged ranges of a file again, writing them over what's in the
+	 * temp file.
+	 *
+	 * @param remoteFile
+	 *            file to retrieve
+	 * @param size
+	 *            size of the remote file
+	 * @param starts
+	 *            start of each range
+	 * @param ends
+	 *            end of each range, exclusive
+	 * @param threads
+	 *            most ranges to fetch at once
+	 * @param tmpFile
+	 *            file to repair
+	 * @param digests
+	 *            digests to update as bytes arrive, or null
+	 * @return true if every range was retrieved
+	 */
+	public boolean repair(String remoteFile, long size, long[] starts, long[] ends, int threads, File tmpFile,
+			BlockDigests digests) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(tmpFile, "rw");
+			return retrieveRanges(remoteFile, size, ends, starts.clone(), threads, file.getChannel(), digests);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't write " + tmpFile + ". " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			close(file);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Retrieve several ranges at once. positions[] starts at the start of each
+	 * range and tracks progress.
+	 */
+	private boolean retrieveRanges(final String remoteFile, long size, long[] ends, final long[] positions,
+			int threads, final FileChannel channel, final BlockDigests digests) throws InterruptedException {
+		ExecutorService executor = threadModel.newExecutor(Math.min(threads, ends.length));
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int i = 0; i < ends.length; i++) {
+				final int segment = i;
+				final long end = ends[i];
+				final boolean last = end == size;
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException, InterruptedException {
+						retrieveRange(remoteFile, channel, positions, segment, end, last, digests);
+						return null;
+					}
+				}));
+			}
+
+			boolean complete = true;
+			for (Future<?> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					LOGGER.info("Segment of " + remoteFile + " failed. " + e.getCause().getMessage());
+					complete = false;
+				}
+			}
+			return complete;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Retrieve a single range. positions[segment] tracks my progress.
+	 */
+	private void retrieveRange(String remoteFile, FileChannel channel, long[] positions, int segment, long end,
+			boolean last, BlockDigests digests) throws IOException, InterruptedException {
+		if (positions[segment] >= end)
+			return;
+
+		FTPClient ftp = sessions.open();
+		try {
+			ftp.setRestartOffset(positions[segment]);
+			InputStream in = ftp.retrieveFileStream(remoteFile);
+			if (in == null)
+				throw new IOException("Server replied: " + ftp.getReplyString());
+
+			// Read no more than the smallest burst at once, as ThrottledOutputStream
+			// writes, so a range doesn't arrive a buffer at a time and then sleep.
+			int chunkSize = bufferSize;
+			for (TokenBucket bucket : rateLimits)
+				chunkSize = Math.min(chunkSize, bucket.getCapacity());
+			chunkSize = Math.max(1, chunkSize);
+
+			byte[] buffer = new byte[bufferSize];
+			try {
+				while (positions[segment] < end) {
+					int n = in.read(buffer, 0, (int) Math.min(chunkSize, end - positions[segment]));
+					if (n < 0)
+						throw new IOException("Server closed range early at " + positions[segment]);
+
+					long slept = 0;
+					for (TokenBucket bucket : rateLimits)
+						slept += bucket.acquire(n);
+					metrics.recordThrottleSleep(slept);
+					metrics.recordBytes(n);
+
+					ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+					while (bytes.hasRemaining())
+						channel.write(bytes, positions[segment] + bytes.position());
+					if (digests != null)
+						digests.update(positions[segment], buffer, 0, n);
+
+					positions[segment] += n;
+				}
+			} finally {
+				in.close();
+			}
+
+			// Ranges other than the last are abandoned before the server
+			// finishes sending, so there's no reply worth waiting for.
+			if (last && !ftp.completePendingCommand())
+				throw new IOException("Server replied: " + ftp.getReplyString());
+		} finally {
+			if (ftp.isConnected())
+				try {
+					ftp.disconnect();
+				} catch (IOException e) {
+				}
+		}
+	}
+
+	private static void close(RandomAccessFile file) {
+		if (file != null)
+			try {
+				file.close();
+			} catch (IOException e) {
+			}
+	}
+}
@@ -0,0 +1,86 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The kind of thread transfers run on. A transfer over a slow link spends
+ * nearly all its time blocked on a socket, so a platform thread each limits
+ * how many can be in flight. Virtual threads, in Java 21 and later, park
+ * instead and share a few carrier threads, so thousands of receivers can be
+ * polled at once.
+ *
+ * I'm built for older JVMs too, so virtual threads are found by reflection.
+ * If they aren't there, platform threads are used instead.
+ */
+public enum ThreadModel {
+
+	PLATFORM("platform"),
+	VIRTUAL("virtual");
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ThreadModel.class);
+
+	private static final ThreadFactory VIRTUAL_THREAD_FACTORY = findVirtualThreadFactory();
+
+	private String typeString;
+
+	private ThreadModel(String typeString) {
+		this.typeString = typeString;
+	}
+
+	public static ThreadModel parse(String typeString) {
+		for (ThreadModel t : ThreadModel.values())
+			if (t.typeString.equals(typeString))
+				return t;
+
+		return null;
+	}
+
+	/**
+	 * @return true if this JVM has virtual threads
+	 */
+	public static boolean isVirtualAvailable() {
+		return VIRTUAL_THREAD_FACTORY != null;
+	}
+
+	/**
+	 * Create an executor for blocking work: a fixed pool of my kind of
+	 * thread. No more than threads tasks run at once, however many are
+	 * submitted.
+	 *
+	 * @param threads
+	 *            threads to pool
+	 * @return a new executor
+	 */
+	public ExecutorService newExecutor(int threads) {
+		if (this == VIRTUAL && VIRTUAL_THREAD_FACTORY != null)
+			return Executors.newFixedThreadPool(Math.max(1, threads), VIRTUAL_THREAD_FACTORY);
+
+		return Executors.newFixedThreadPool(Math.max(1, threads));
+	}
+
+	public String toString() {
+		return typeString;
+	}
+
+	/**
+	 * Look up Thread.ofVirtual().factory().
+	 *
+	 * @return a factory for virtual threads, or null if this JVM has none
+	 */
+	private static ThreadFactory findVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		} catch (RuntimeException e) {
+			LOGGER.debug("Couldn't create virtual threads. " + e.getMessage());
+			return null;
+		}
+	}
+}
@@ -1,31 +1,29 @@
 package gov.usgs.volcanoes.netRSFileMover;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A class to write to an output stream at a specified rate. Intended to be used
- * with output rates that are small but above 1bps. This class will block once
- * it has written as many bytes as it should in a given timeWindow
+ * with output rates that are small but above 1bps. Writes block until every
+ * TokenBucket I've been given allows them, so a stream may be held to its own
+ * rate and to a budget shared with other streams at the same time.
  * 
  * @author Tom Parker
  * 
  */
 public class ThrottledOutputStream extends OutputStream {
 
-	public static final int DEFAULT_TIME_WINDOW_MS = 250;
-
-	private final int bytesPerSecond;
 	private final OutputStream outStream;
-
-	private int timeWindowMS;
-	private int bytesPerWindow;
-
-	private long windowStart;
-	private long bytesWriten;
+	private final List<TokenBucket> buckets;
+	private final int chunkSize;
+	private long sleepTime;
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(ThrottledOutputStream.class);
 
@@ -38,50 +36,74 @@ public class ThrottledOutputStream extends OutputStream {
 	 *            as int to limit upper bound on write speed
 	 */
 	ThrottledOutputStream(OutputStream outStream, int bytesPerSecond) {
-
-		LOGGER.debug("constructing ThrottledOutputStream at " + bytesPerSecond + " bps");
-		this.bytesPerSecond = bytesPerSecond;
-		this.outStream = outStream;
-		windowStart = System.currentTimeMillis();
-
-		setTimeWindow(DEFAULT_TIME_WINDOW_MS);
+		this(outStream, Arrays.asList(new TokenBucket(bytesPerSecond)));
 	}
 
 	/**
-	 * timeWindowMS mutator method.
+	 * Constructor for streams sharing rate limits.
 	 * 
-	 * @param timeWindow
-	 *            window length in ms
+	 * @param outStream
+	 *            OutputStream to write to
+	 * @param buckets
+	 *            rate limits to honor. May be shared with other streams.
 	 */
-	public void setTimeWindow(int timeWindow) {
-		timeWindowMS = timeWindow;
-		bytesPerWindow = timeWindowMS * bytesPerSecond / 1000;
-
-		LOGGER.debug("I will write no more than " + bytesPerWindow + " bytes every " + timeWindowMS + "ms.");
+	ThrottledOutputStream(OutputStream outStream, List<TokenBucket> buckets) {
+		this.outStream = outStream;
+		this.buckets = buckets;
+
+		// Write in pieces no bigger than the smallest burst, so a large write
+		// doesn't go out all at once and then sleep.
+		int smallest = Integer.MAX_VALUE;
+		for (TokenBucket bucket : buckets) {
+			smallest = Math.min(smallest, bucket.getCapacity());
+			LOGGER.debug("constructing ThrottledOutputStream at " + bucket.getRate() + " bps");
+		}
+		chunkSize = Math.max(1, smallest);
 	}
 
 	/**
-	 * write 4 bytes and block if it's time.
+	 * write a single byte, blocking if it's time.
 	 */
 	public void write(int b) throws IOException {
-
+		throttle(1);
 		outStream.write(b);
-		bytesWriten += 4;
+	}
 
-		if (bytesWriten >= bytesPerWindow) {
-			bytesWriten = 0;
+	/**
+	 * write a block of bytes, blocking as needed to keep to my rate.
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int chunk = Math.min(len, chunkSize);
+			throttle(chunk);
+			outStream.write(b, off, chunk);
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	public void flush() throws IOException {
+		outStream.flush();
+	}
+
+	public void close() throws IOException {
+		outStream.close();
+	}
+
+	/**
+	 * @return time spent waiting on my rate limits, in ms
+	 */
+	public long getSleepTime() {
+		return sleepTime;
+	}
 
-			long now = System.currentTimeMillis();
-			long sleep = now - (windowStart + timeWindowMS);
-			if (sleep > 0) {
-				try {
-					// LOGGER.debug("sleeping for " + sleep + " ms.");
-					Thread.sleep(sleep);
-				} catch (InterruptedException e) {
-				} finally {
-					windowStart = System.currentTimeMillis();
-				}
-			}
+	private void throttle(int count) throws IOException {
+		try {
+			for (TokenBucket bucket : buckets)
+				sleepTime += bucket.acquire(count);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while throttled");
 		}
 	}
 }
@@ -0,0 +1,96 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+/**
+ * A token bucket rate limiter. Tokens accumulate at a fixed rate up to a small
+ * burst allowance. Callers taking more tokens than are available go into debt
+ * and sleep until it's repaid, so the long-run rate is accurate regardless of
+ * how the tokens are requested. A bucket may be shared by several threads to
+ * hold them all to a common budget.
+ */
+public class TokenBucket {
+
+	/** Tokens allowed to accumulate, as time at the full rate. */
+	public static final int DEFAULT_BURST_MS = 250;
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private double bytesPerSecond;
+	private double capacity;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param bytesPerSecond
+	 *            rate at which tokens are made available
+	 */
+	public TokenBucket(int bytesPerSecond) {
+		lastRefill = System.nanoTime();
+		setRate(bytesPerSecond);
+		tokens = capacity;
+	}
+
+	/**
+	 * Change the rate. Tokens already earned are kept.
+	 *
+	 * @param bytesPerSecond
+	 *            rate at which tokens are made available
+	 */
+	public synchronized void setRate(int bytesPerSecond) {
+		if (bytesPerSecond < 1)
+			throw new IllegalArgumentException("bytesPerSecond must be positive. " + bytesPerSecond + " doesn't cut it.");
+
+		refill();
+		this.bytesPerSecond = bytesPerSecond;
+		capacity = Math.max(1, bytesPerSecond * DEFAULT_BURST_MS / 1000.0);
+	}
+
+	/**
+	 * rate accessor.
+	 *
+	 * @return rate at which tokens are made available
+	 */
+	public synchronized int getRate() {
+		return (int) bytesPerSecond;
+	}
+
+	/**
+	 * Largest request which can be met without going into debt.
+	 *
+	 * @return burst allowance in bytes
+	 */
+	public synchronized int getCapacity() {
+		return (int) capacity;
+	}
+
+	/**
+	 * Take tokens, blocking until the rate allows them. The lock is not held
+	 * while sleeping.
+	 *
+	 * @param count
+	 *            tokens to take
+	 * @return time spent sleeping in ms
+	 * @throws InterruptedException
+	 */
+	public long acquire(int count) throws InterruptedException {
+		long waitNanos;
+		synchronized (this) {
+			refill();
+			tokens -= count;
+			waitNanos = tokens < 0 ? (long) (-tokens * NANOS_PER_SECOND / bytesPerSecond) : 0;
+		}
+
+		if (waitNanos <= 0)
+			return 0;
+
+		Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+		return waitNanos / 1000000;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerSecond / NANOS_PER_SECOND);
+		lastRefill = now;
+	}
+}
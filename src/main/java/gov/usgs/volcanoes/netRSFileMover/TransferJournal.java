@@ -0,0 +1,251 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only record of what's known about each file on a receiver. Lines
+ * are tab separated: time, status, file name, verified offset and failure
+ * count. The last line for a file wins. The journal is compacted whenever most
+ * of its lines have been superseded.
+ */
+public class TransferJournal {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TransferJournal.class);
+
+	/**
+	 * What I know about a file.
+	 */
+	public enum Status {
+		/** file is in the archive */
+		ARCHIVED,
+		/** receiver doesn't have the file */
+		MISSING,
+		/** receiver has the file, which hasn't been fetched */
+		AVAILABLE,
+		/** some of the file has been downloaded */
+		PARTIAL,
+		/** some of the file has been downloaded while it was being recorded */
+		TAILING,
+		/** transfer failed with nothing to show for it */
+		FAILED
+	}
+
+	/**
+	 * A single journal record.
+	 */
+	public static class Entry {
+		/** what I know */
+		public final Status status;
+		/** when I learned it, in ms */
+		public final long time;
+		/** bytes of a partial download known to be on disk */
+		public final long offset;
+		/** failed attempts since the last success */
+		public final int failures;
+
+		private Entry(Status status, long time, long offset, int failures) {
+			this.status = status;
+			this.time = time;
+			this.offset = offset;
+			this.failures = failures;
+		}
+	}
+
+	private final File journalFile;
+	private Map<String, Entry> entries;
+	/** lines in the journal file */
+	private int lines;
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param journalFile
+	 *            where to keep the journal
+	 */
+	public TransferJournal(File journalFile) {
+		this.journalFile = journalFile;
+	}
+
+	/**
+	 * Look up a file.
+	 *
+	 * @param name
+	 *            remote file name
+	 * @return the latest entry for the file, or null if I've never heard of it
+	 */
+	public synchronized Entry get(String name) {
+		return getEntries().get(name);
+	}
+
+	/**
+	 * Record a file which has been archived.
+	 *
+	 * @param name
+	 *            remote file name
+	 */
+	public synchronized void archived(String name) {
+		record(name, new Entry(Status.ARCHIVED, System.currentTimeMillis(), 0, 0));
+	}
+
+	/**
+	 * Record a file the receiver doesn't have.
+	 *
+	 * @param name
+	 *            remote file name
+	 */
+	public synchronized void missing(String name) {
+		record(name, new Entry(Status.MISSING, System.currentTimeMillis(), 0, 0));
+	}
+
+	/**
+	 * Record a file the receiver has, but I haven't fetched.
+	 *
+	 * @param name
+	 *            remote file name
+	 */
+	public synchronized void available(String name) {
+		record(name, new Entry(Status.AVAILABLE, System.currentTimeMillis(), 0, 0));
+	}
+
+	/**
+	 * Record bytes fetched from a file still being recorded.
+	 *
+	 * @param name
+	 *            remote file name
+	 * @param offset
+	 *            bytes safely on disk
+	 */
+	public synchronized void tailing(String name, long offset) {
+		record(name, new Entry(Status.TAILING, System.currentTimeMillis(), offset, 0));
+	}
+
+	/**
+	 * Record a failed transfer.
+	 *
+	 * @param name
+	 *            remote file name
+	 * @param offset
+	 *            bytes safely on disk, or 0 if there's nothing to resume
+	 */
+	public synchronized void failed(String name, long offset) {
+		Entry previous = get(name);
+		int failures = previous == null ? 1 : previous.failures + 1;
+		Status status = offset > 0 ? Status.PARTIAL : Status.FAILED;
+		record(name, new Entry(status, System.currentTimeMillis(), offset, failures));
+	}
+
+	/**
+	 * Forget what I've read, so the journal is read again when next consulted.
+	 * Another node may have added to it.
+	 */
+	public synchronized void reload() {
+		entries = null;
+	}
+
+	private void record(String name, Entry entry) {
+		getEntries().put(name, entry);
+
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new FileWriter(journalFile, true));
+			write(writer, name, entry);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't update journal " + journalFile + ". " + e.getMessage());
+		} finally {
+			close(writer);
+		}
+
+		lines++;
+		if (lines > 2 * entries.size())
+			compact();
+	}
+
+	private Map<String, Entry> getEntries() {
+		if (entries != null)
+			return entries;
+
+		entries = new HashMap<String, Entry>();
+		lines = 0;
+		if (!journalFile.exists())
+			return entries;
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(journalFile));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines++;
+				String[] fields = line.split("\t");
+				if (fields.length != 5) {
+					LOGGER.debug("Ignoring truncated journal line: " + line);
+					continue;
+				}
+				try {
+					entries.put(fields[2], new Entry(Status.valueOf(fields[1]), Long.parseLong(fields[0]),
+							Long.parseLong(fields[3]), Integer.parseInt(fields[4])));
+				} catch (IllegalArgumentException e) {
+					LOGGER.debug("Ignoring corrupt journal line: " + line);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.error("Couldn't read journal " + journalFile + ". " + e.getMessage());
+		} finally {
+			close(reader);
+		}
+
+		if (lines > 2 * entries.size())
+			compact();
+
+		return entries;
+	}
+
+	/**
+	 * Rewrite the journal with one line per file. If that fails I'll try again
+	 * once the journal has doubled again.
+	 */
+	private void compact() {
+		lines = entries.size();
+
+		File tmp = new File(journalFile.getPath() + ".tmp");
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new FileWriter(tmp));
+			for (Map.Entry<String, Entry> entry : entries.entrySet())
+				write(writer, entry.getKey(), entry.getValue());
+			writer.close();
+			writer = null;
+			Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't compact journal " + journalFile + ". " + e.getMessage());
+		} finally {
+			close(writer);
+		}
+	}
+
+	private static void write(Writer writer, String name, Entry entry) throws IOException {
+		writer.write(entry.time + "\t" + entry.status + "\t" + name + "\t" + entry.offset + "\t" + entry.failures
+				+ "\n");
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable != null)
+			try {
+				closeable.close();
+			} catch (IOException e) {
+			}
+	}
+}
@@ -0,0 +1,297 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfer metrics for a single receiver. Counters only ever grow; they're
+ * reset when I restart. Latencies and throughput are kept as histograms so
+ * a slow link can be told from an occasional slow transfer.
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+	private final String receiver;
+	private final String site;
+
+	private final AtomicLong bytesTransferred = new AtomicLong();
+	private final AtomicLong filesArchived = new AtomicLong();
+	private final AtomicLong filesMissing = new AtomicLong();
+	private final AtomicLong filesFailed = new AtomicLong();
+	private final AtomicLong pollsUnreachable = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong resumes = new AtomicLong();
+	private final AtomicLong resumedBytes = new AtomicLong();
+	private final AtomicLong throttleSleepMillis = new AtomicLong();
+	private final AtomicLong connects = new AtomicLong();
+	private final AtomicLong connectFailures = new AtomicLong();
+	private final AtomicLong verifyFailures = new AtomicLong();
+	private final AtomicLong repairedBytes = new AtomicLong();
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicInteger throttleBytesPerSecond = new AtomicInteger();
+
+	private final Histogram connectSeconds = new Histogram(Histogram.LATENCY_BUCKETS);
+	private final Histogram firstByteSeconds = new Histogram(Histogram.LATENCY_BUCKETS);
+	private final Histogram bytesPerSecond = new Histogram(Histogram.THROUGHPUT_BUCKETS);
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param receiver
+	 *            receiver name
+	 * @param site
+	 *            site the receiver belongs to
+	 */
+	public TransferMetrics(String receiver, String site) {
+		this.receiver = receiver;
+		this.site = site;
+	}
+
+	/**
+	 * @return name of my receiver
+	 */
+	public String getReceiver() {
+		return receiver;
+	}
+
+	/**
+	 * Record an attempt to connect and log in.
+	 *
+	 * @param ms
+	 *            time taken
+	 * @param success
+	 *            true if I'm logged in
+	 */
+	public void recordConnect(long ms, boolean success) {
+		connects.incrementAndGet();
+		if (success)
+			connectSeconds.observe(ms / 1000.0);
+		else
+			connectFailures.incrementAndGet();
+	}
+
+	/**
+	 * Record the delay between requesting a file and receiving its first
+	 * byte.
+	 *
+	 * @param ms
+	 */
+	public void recordFirstByte(long ms) {
+		firstByteSeconds.observe(ms / 1000.0);
+	}
+
+	/**
+	 * Record bytes received.
+	 *
+	 * @param bytes
+	 */
+	public void recordBytes(long bytes) {
+		bytesTransferred.addAndGet(bytes);
+	}
+
+	/**
+	 * Record a completed transfer.
+	 *
+	 * @param bytes
+	 *            bytes received
+	 * @param ms
+	 *            time taken
+	 */
+	public void recordTransfer(long bytes, long ms) {
+		if (ms > 0)
+			bytesPerSecond.observe(bytes * 1000.0 / ms);
+	}
+
+	/**
+	 * Record a reconnection made to finish a transfer.
+	 */
+	public void recordRetry() {
+		retries.incrementAndGet();
+	}
+
+	/**
+	 * Record a transfer resumed part way through.
+	 *
+	 * @param offset
+	 *            bytes already on disk
+	 */
+	public void recordResume(long offset) {
+		resumes.incrementAndGet();
+		resumedBytes.addAndGet(offset);
+	}
+
+	/**
+	 * Record time spent waiting on rate limits.
+	 *
+	 * @param ms
+	 */
+	public void recordThrottleSleep(long ms) {
+		throttleSleepMillis.addAndGet(ms);
+	}
+
+	/**
+	 * Record a file which didn't match the receiver's size or checksum.
+	 */
+	public void recordVerifyFailure() {
+		verifyFailures.incrementAndGet();
+	}
+
+	/**
+	 * Record damaged ranges fetched again.
+	 *
+	 * @param bytes
+	 *            bytes requested
+	 */
+	public void recordRepair(long bytes) {
+		repairedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Record the outcome of a poll.
+	 *
+	 * @param result
+	 */
+	public void recordResult(PollResult result) {
+		switch (result) {
+		case ARCHIVED:
+			filesArchived.incrementAndGet();
+			break;
+		case MISSING:
+			filesMissing.incrementAndGet();
+			break;
+		case FAILED:
+			filesFailed.incrementAndGet();
+			break;
+		case UNREACHABLE:
+		case DEFERRED:
+			pollsUnreachable.incrementAndGet();
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @param depth
+	 *            intervals waiting to be polled
+	 */
+	public void setQueueDepth(int depth) {
+		queueDepth.set(depth);
+	}
+
+	/**
+	 * @param rate
+	 *            current throttle rate in bytes per second, or a value less
+	 *            than one if unthrottled
+	 */
+	public void setThrottleBytesPerSecond(int rate) {
+		throttleBytesPerSecond.set(Math.max(0, rate));
+	}
+
+	public long getBytesTransferred() {
+		return bytesTransferred.get();
+	}
+
+	public long getFilesArchived() {
+		return filesArchived.get();
+	}
+
+	public long getFilesMissing() {
+		return filesMissing.get();
+	}
+
+	public long getFilesFailed() {
+		return filesFailed.get();
+	}
+
+	public long getPollsUnreachable() {
+		return pollsUnreachable.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	public long getResumes() {
+		return resumes.get();
+	}
+
+	public long getResumedBytes() {
+		return resumedBytes.get();
+	}
+
+	public long getThrottleSleepMillis() {
+		return throttleSleepMillis.get();
+	}
+
+	public long getConnects() {
+		return connects.get();
+	}
+
+	public long getConnectFailures() {
+		return connectFailures.get();
+	}
+
+	public long getVerifyFailures() {
+		return verifyFailures.get();
+	}
+
+	public long getRepairedBytes() {
+		return repairedBytes.get();
+	}
+
+	public double getMeanConnectMillis() {
+		return connectSeconds.getMean() * 1000;
+	}
+
+	public double getMeanFirstByteMillis() {
+		return firstByteSeconds.getMean() * 1000;
+	}
+
+	public double getMeanBytesPerSecond() {
+		return bytesPerSecond.getMean();
+	}
+
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	public int getThrottleBytesPerSecond() {
+		return throttleBytesPerSecond.get();
+	}
+
+	/**
+	 * Add my metrics to a Prometheus text exposition.
+	 *
+	 * @param out
+	 */
+	public void writeTo(MetricsExporter.PrometheusText out) {
+		String labels = "receiver=\"" + MetricsExporter.escape(receiver) + "\",site=\""
+				+ MetricsExporter.escape(site) + "\"";
+
+		out.counter("netrs_bytes_transferred_total", "Bytes received.", labels, getBytesTransferred());
+		out.counter("netrs_files_archived_total", "Files moved into the archive.", labels, getFilesArchived());
+		out.counter("netrs_files_missing_total", "Files the receiver didn't have.", labels, getFilesMissing());
+		out.counter("netrs_files_failed_total", "Files which couldn't be retrieved.", labels, getFilesFailed());
+		out.counter("netrs_polls_unreachable_total", "Polls made while the receiver couldn't be reached.", labels,
+				getPollsUnreachable());
+		out.counter("netrs_retries_total", "Reconnections made to finish a transfer.", labels, getRetries());
+		out.counter("netrs_resumes_total", "Transfers resumed from a partial download.", labels, getResumes());
+		out.counter("netrs_resumed_bytes_total", "Bytes skipped by resuming.", labels, getResumedBytes());
+		out.counter("netrs_throttle_sleep_seconds_total", "Time spent waiting on rate limits.", labels,
+				getThrottleSleepMillis() / 1000.0);
+		out.counter("netrs_connects_total", "Connections made.", labels, getConnects());
+		out.counter("netrs_connect_failures_total", "Connections which failed.", labels, getConnectFailures());
+		out.counter("netrs_verify_failures_total", "Files which didn't match the receiver's size or checksum.",
+				labels, getVerifyFailures());
+		out.counter("netrs_repaired_bytes_total", "Bytes fetched again to repair damaged ranges.", labels,
+				getRepairedBytes());
+		out.gauge("netrs_queue_depth", "Intervals waiting to be polled.", labels, getQueueDepth());
+		out.gauge("netrs_throttle_bytes_per_second", "Current throttle rate, 0 if unthrottled.", labels,
+				getThrottleBytesPerSecond());
+		out.histogram("netrs_connect_seconds", "Time to connect and log in.", labels, connectSeconds);
+		out.histogram("netrs_first_byte_seconds", "Time from requesting a file to its first byte.", labels,
+				firstByteSeconds);
+		out.histogram("netrs_transfer_bytes_per_second", "Throughput of completed transfers.", labels,
+				bytesPerSecond);
+	}
+}
@@ -0,0 +1,61 @@
+package gov.usgs.volcanoes.netRSFileMover;
+
+/**
+ * Transfer metrics for a single receiver, as seen over JMX.
+ */
+public interface TransferMetricsMBean {
+
+	/** @return bytes received, including from transfers which later failed */
+	long getBytesTransferred();
+
+	/** @return files moved into the archive */
+	long getFilesArchived();
+
+	/** @return files the receiver didn't have */
+	long getFilesMissing();
+
+	/** @return files which couldn't be retrieved */
+	long getFilesFailed();
+
+	/** @return polls made while the receiver couldn't be reached */
+	long getPollsUnreachable();
+
+	/** @return reconnections made to finish a transfer */
+	long getRetries();
+
+	/** @return transfers resumed from a partial download */
+	long getResumes();
+
+	/** @return bytes skipped by resuming */
+	long getResumedBytes();
+
+	/** @return time spent waiting on rate limits, in ms */
+	long getThrottleSleepMillis();
+
+	/** @return connections made */
+	long getConnects();
+
+	/** @return connections which failed */
+	long getConnectFailures();
+
+	/** @return files which didn't match the receiver's size or checksum */
+	long getVerifyFailures();
+
+	/** @return bytes fetched again to repair damaged ranges */
+	long getRepairedBytes();
+
+	/** @return mean time to connect and log in, in ms */
+	double getMeanConnectMillis();
+
+	/** @return mean time from requesting a file to its first byte, in ms */
+	double getMeanFirstByteMillis();
+
+	/** @return mean throughput of completed transfers, in bytes per second */
+	double getMeanBytesPerSecond();
+
+	/** @return intervals waiting to be polled */
+	int getQueueDepth();
+
+	/** @return current throttle rate in bytes per second, or 0 if unthrottled */
+	int getThrottleBytesPerSecond();
+}